@@ -2,9 +2,11 @@ package org.teacon.mua2fa;
 
 import net.minecraft.FieldsAreNonnullByDefault;
 import net.minecraft.MethodsReturnNonnullByDefault;
+import net.neoforged.bus.api.IEventBus;
 import net.neoforged.fml.common.Mod;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.teacon.mua2fa.data.MUAIdentity;
 
 import javax.annotation.ParametersAreNonnullByDefault;
 
@@ -14,7 +16,11 @@ import javax.annotation.ParametersAreNonnullByDefault;
 @ParametersAreNonnullByDefault
 public final class MUA2FA {
     public static final String ID = "mua2fa";
-    public static final String NETWORK_VERSION = "1";
+    public static final String NETWORK_VERSION = "8";
     public static final String MUA_HOST = "skin.mualliance.ltd";
     public static final Logger LOGGER = LogManager.getLogger("MUA2FA");
+
+    public MUA2FA(IEventBus modEventBus) {
+        MUAIdentity.ATTACHMENT_TYPES.register(modEventBus);
+    }
 }
@@ -1,6 +1,8 @@
 package org.teacon.mua2fa.client;
 
 import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import com.mojang.authlib.GameProfile;
 import com.mojang.datafixers.util.Either;
 import com.mojang.serialization.Codec;
 import net.minecraft.FieldsAreNonnullByDefault;
@@ -28,14 +30,18 @@ import org.apache.logging.log4j.Marker;
 import org.apache.logging.log4j.MarkerManager;
 import org.joml.Vector2i;
 import org.teacon.mua2fa.MUA2FA;
+import org.teacon.mua2fa.data.KeyRing;
 import org.teacon.mua2fa.data.MUARecord;
 import org.teacon.mua2fa.data.OAuthHttp;
 import org.teacon.mua2fa.data.OAuthState;
 import org.teacon.mua2fa.network.RequestForClientRecordPacket;
 import org.teacon.mua2fa.network.RequestForClientRefreshPacket;
+import org.teacon.mua2fa.network.RequestForClientSessionPacket;
 import org.teacon.mua2fa.network.ResponseToServerCancelPacket;
 import org.teacon.mua2fa.network.ResponseToServerRecordPacket;
+import org.teacon.mua2fa.network.ResponseToServerSessionPacket;
 import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
 
 import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
@@ -44,11 +50,16 @@ import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 import java.util.function.IntConsumer;
 
@@ -57,21 +68,22 @@ import java.util.function.IntConsumer;
 @ParametersAreNonnullByDefault
 public final class ConnectScreenListener {
     private static final Marker MARKER = MarkerManager.getMarker("Connection");
-
-    private static final Codec<Either<MUARecord, MUAEmptyState>> CODEC;
-
-    static {
-        CODEC = Codec.mapEither(MUARecord.MAP_CODEC,
-                MUAEmptyState.CODEC.optionalFieldOf("state", MUAEmptyState.INIT)).codec();
-    }
+    private static final Duration RENEW_CHECK_DELAY = Duration.ofMinutes(1L);
+    private static final Duration RENEW_CHECK_INTERVAL = Duration.ofHours(1L);
+    private static final int RENEW_LIFETIME_DIVISOR = 4;
 
     private @Nullable URI authUri;
     private @Nullable URI recordUri;
+    private @Nullable KeyRing recordKeys;
     private @Nullable Disposable recordPolls;
+    private @Nullable Disposable renewals;
     private @Nullable Instant muaRequestExpire;
     private Consumer<Component> updateConnectionMessage = Objects::hash;
-    private Either<MUARecord, MUAEmptyState> data = Either.right(MUAEmptyState.INIT);
+    private MUARecordStore store = MUARecordStore.EMPTY;
+    private CompletableFuture<Void> saving = CompletableFuture.completedFuture(null);
 
+    // kept in memory only, since trusted reconnects are meant for short interruptions of a running game
+    private final Map<String, HashCode> sessionTokens = new HashMap<>();
     private final Buttons buttons;
     private final String userAgent;
 
@@ -116,11 +128,15 @@ public final class ConnectScreenListener {
 
     public void click(int index, OAuthState state, IPayloadContext context) {
         if (index == Buttons.AUTH && this.authUri != null) {
-            if (this.recordUri != null && this.recordPolls == null) {
+            if (this.recordUri != null && this.recordKeys != null && this.recordPolls == null) {
+                var keys = this.recordKeys;
                 var poll = OAuthHttp.poll(this.recordUri, this.userAgent, Duration.ofSeconds(3L));
                 this.recordPolls = poll.subscribe(record -> context.enqueueWork(() -> {
                     MUA2FA.LOGGER.info(MARKER, "Fetched the record of the player");
-                    context.reply(new ResponseToServerRecordPacket(record));
+                    ResponseToServerRecordPacket.of(record, keys).ifPresentOrElse(context::reply, () -> {
+                        // the prompt stays on the screen, so the player is still able to cancel
+                        MUA2FA.LOGGER.warn(MARKER, "The fetched record is not signed by any key of the server");
+                    });
                 }));
             }
             Util.getPlatform().openUri(this.authUri);
@@ -132,11 +148,13 @@ public final class ConnectScreenListener {
                 this.recordPolls.dispose();
                 this.recordPolls = null;
             }
+            var profileId = Minecraft.getInstance().getGameProfile().getId();
             if (index == Buttons.SKIP_FOREVER) {
-                this.data = Either.right(MUAEmptyState.HIDE_FOREVER);
+                this.store = this.store.with(profileId, Either.right(MUAEmptyState.HIDE_FOREVER));
                 this.save();
             } else {
-                this.data = this.data.mapRight(e -> MUAEmptyState.SHOW_IF_NECESSARY);
+                var data = this.store.get(profileId).mapRight(e -> MUAEmptyState.SHOW_IF_NECESSARY);
+                this.store = this.store.with(profileId, data);
                 this.save();
             }
             context.reply(new ResponseToServerCancelPacket(state));
@@ -145,50 +163,89 @@ public final class ConnectScreenListener {
     }
 
     public void handle(RequestForClientRecordPacket packet, IPayloadContext context) {
-        context.enqueueWork(() -> {
-            var profile = Minecraft.getInstance().getGameProfile();
-            // append hints to the oauth state
-            var cancelHint = I18n.get("mua2fa.cancel_title") + "\n" + I18n.get("mua2fa.cancel_subtitle");
-            var completeHint = I18n.get("mua2fa.complete_title") + "\n" + I18n.get("mua2fa.complete_subtitle");
-            var state = packet.state().with(cancelHint, completeHint);
-            // bypass if the record is valid now
-            var recordToBypass = this.data.left().filter(record -> {
-                if (packet.forceRefresh()) {
-                    return false; // bypassing is disabled if the packet from the server requires this
-                }
-                return record.verify(profile, packet.key()).test(Instant.now());
-            });
-            if (recordToBypass.isPresent()) {
-                context.reply(new ResponseToServerRecordPacket(recordToBypass.get()));
-                return;
-            }
-            // bypass if the record is empty and hide forever is chosen
-            var emptyToBypass = this.data.right().filter(MUAEmptyState.HIDE_FOREVER::equals);
-            if (emptyToBypass.isPresent()) {
-                context.reply(new ResponseToServerCancelPacket(state));
-                return;
-            }
-            // set the expiration timestamp and urls
-            this.muaRequestExpire = Instant.now().plus(packet.duration());
-            try {
-                var recordBuilder = new URIBuilder(Util.parseAndValidateUntrustedUri(packet.recordBaseUri()));
-                var authBuilder = new URIBuilder(Util.parseAndValidateUntrustedUri(packet.authBaseUri()));
-                this.recordUri = recordBuilder.addParameter("state", state.toString()).build();
-                this.authUri = authBuilder.addParameter("state", state.toString()).build();
-            } catch (URISyntaxException e) {
-                MUA2FA.LOGGER.warn(MARKER, "Invalid auth uri: {}", packet.authBaseUri(), e);
-                this.recordPolls = null;
-                this.authUri = null;
+        var profile = Minecraft.getInstance().getGameProfile();
+        var data = this.store.get(profile.getId());
+        // verification, uri building and state encoding are kept away from the render thread
+        CompletableFuture.supplyAsync(() -> prepare(packet, profile, data), Util.backgroundExecutor())
+                .exceptionally(e -> {
+                    // the player can still choose to cancel, so the server is never left without a reply
+                    MUA2FA.LOGGER.warn(MARKER, "Failed to prepare the mua request", e);
+                    var expire = Instant.now().plus(packet.duration());
+                    return new Prompt(packet.state(), packet.keys(), expire, null, null, false);
+                })
+                .thenAcceptAsync(preparation -> {
+                    switch (preparation) {
+                        case BypassRecord(var record) -> {
+                            // the record has been targeted at the keys of the server, so a signature always matches
+                            var response = ResponseToServerRecordPacket.of(record, packet.keys()).orElseThrow();
+                            context.reply(response);
+                        }
+                        case BypassCancel(var state) -> context.reply(new ResponseToServerCancelPacket(state));
+                        case Prompt prompt -> {
+                            // set the expiration timestamp and urls
+                            this.muaRequestExpire = prompt.expire();
+                            this.recordUri = prompt.recordUri();
+                            this.recordKeys = prompt.keys();
+                            this.authUri = prompt.authUri();
+                            // show the mua request screen
+                            this.buttons.show(prompt.state(), prompt.includeHideForever(), context);
+                        }
+                    }
+                }, context::enqueueWork);
+    }
+
+    private static Preparation prepare(RequestForClientRecordPacket packet,
+                                       GameProfile profile, Either<MUARecord, MUAEmptyState> data) {
+        // append hints to the oauth state
+        var cancelHint = I18n.get("mua2fa.cancel_title") + "\n" + I18n.get("mua2fa.cancel_subtitle");
+        var completeHint = I18n.get("mua2fa.complete_title") + "\n" + I18n.get("mua2fa.complete_subtitle");
+        var state = packet.state().with(cancelHint, completeHint);
+        // bypass if the record is valid now
+        var recordToBypass = data.left().flatMap(record -> {
+            if (packet.forceRefresh()) {
+                return Optional.empty(); // bypassing is disabled if the packet from the server requires this
             }
-            // show the mua request screen
-            var includeHideForever = !this.data.right().orElse(MUAEmptyState.INIT).equals(MUAEmptyState.INIT);
-            this.buttons.show(state, includeHideForever, context);
+            return record.target(profile, packet.keys(), Instant.now());
         });
+        if (recordToBypass.isPresent()) {
+            return new BypassRecord(recordToBypass.get());
+        }
+        // bypass if the record is empty and hide forever is chosen
+        var emptyToBypass = data.right().filter(MUAEmptyState.HIDE_FOREVER::equals);
+        if (emptyToBypass.isPresent()) {
+            return new BypassCancel(state);
+        }
+        var expire = Instant.now().plus(packet.duration());
+        var includeHideForever = !data.right().orElse(MUAEmptyState.INIT).equals(MUAEmptyState.INIT);
+        try {
+            var stateString = state.toString();
+            var recordBuilder = new URIBuilder(Util.parseAndValidateUntrustedUri(packet.recordBaseUri()));
+            var authBuilder = new URIBuilder(Util.parseAndValidateUntrustedUri(packet.authBaseUri()));
+            var recordUri = recordBuilder.addParameter("state", stateString).build();
+            var authUri = authBuilder.addParameter("state", stateString).build();
+            return new Prompt(state, packet.keys(), expire, authUri, recordUri, includeHideForever);
+        } catch (URISyntaxException e) {
+            MUA2FA.LOGGER.warn(MARKER, "Invalid auth uri: {}", packet.authBaseUri(), e);
+            return new Prompt(state, packet.keys(), expire, null, null, includeHideForever);
+        }
     }
 
     public void handle(RequestForClientRefreshPacket packet, IPayloadContext context) {
         context.enqueueWork(() -> {
-            this.data = Either.left(this.data.map(r -> r.refresh(packet.record()), e -> packet.record()));
+            var data = this.refresh(packet.record());
+            // remember how to renew the record of this server so that later joins can skip the oauth process
+            var currentServer = Minecraft.getInstance().getCurrentServer();
+            if (currentServer != null) {
+                this.sessionTokens.put(currentServer.ip, packet.sessionToken());
+                var keys = packet.keys().getKeyBytes();
+                var server = new MUARecordStore.Server(packet.renewBaseUri(), keys, Duration.ZERO);
+                var expire = server.expireOf(packet.record());
+                var remaining = expire.map(e -> Duration.between(Instant.now(), e)).orElse(Duration.ZERO);
+                var previous = this.store.getServers().getOrDefault(currentServer.ip, server).lifetime();
+                // a record which was not signed again only shows what is left of its lifetime, so the longest is kept
+                var lifetime = previous.compareTo(remaining) > 0 ? previous : remaining;
+                this.store = this.store.withServer(currentServer.ip, server.withLifetime(lifetime));
+            }
             this.save();
             this.buttons.hide();
             this.buttons.close();
@@ -197,31 +254,90 @@ public final class ConnectScreenListener {
                 this.recordPolls.dispose();
                 this.recordPolls = null;
             }
-            var message = Component.translatable("connect.joining");
-            var user = this.data.left().map(MUARecord::getUser);
-            if (user.isPresent()) {
-                message = Component.translatable("mua2fa.mua_info", message, user.get().nickname());
-            }
+            var joining = Component.translatable("connect.joining");
+            var message = Component.translatable("mua2fa.mua_info", joining, data.getUser().nickname());
             this.updateConnectionMessage.accept(message);
         });
     }
 
+    public void handle(RequestForClientSessionPacket packet, IPayloadContext context) {
+        context.enqueueWork(() -> {
+            var currentServer = Minecraft.getInstance().getCurrentServer();
+            var token = currentServer != null ? this.sessionTokens.get(currentServer.ip) : null;
+            context.reply(new ResponseToServerSessionPacket(Optional.ofNullable(token)));
+        });
+    }
+
+    private MUARecord refresh(MUARecord record) {
+        var profileId = record.getProfile().getId();
+        var data = this.store.get(profileId).map(r -> r.refresh(record), e -> record);
+        this.store = this.store.with(profileId, Either.left(data));
+        return data;
+    }
+
+    private void renew() {
+        var now = Instant.now();
+        for (var entry : this.store.getServers().entrySet()) {
+            var server = entry.getValue();
+            for (var data : this.store.getEntries().values()) {
+                var record = data.left().flatMap(server::target).orElse(null);
+                var expire = record != null ? server.expireOf(record).orElse(now) : now;
+                // signatures are renewed within the last part of their lifetime, which differs from server to server
+                var renewBefore = server.lifetime().dividedBy(RENEW_LIFETIME_DIVISOR);
+                // expired records can only be replaced by the oauth process
+                if (record == null || !expire.isAfter(now) || expire.isAfter(now.plus(renewBefore))) {
+                    continue;
+                }
+                try {
+                    var renewUri = Util.parseAndValidateUntrustedUri(server.renewUri());
+                    // only the signature of this server is sent, never the ones of other servers
+                    OAuthHttp.renew(renewUri, this.userAgent, record).subscribe(renewed -> {
+                        if (!server.isRenewalOf(record, renewed)) {
+                            MUA2FA.LOGGER.warn(MARKER, "Refused the renewed record from {}", entry.getKey());
+                            return;
+                        }
+                        Minecraft.getInstance().execute(() -> {
+                            MUA2FA.LOGGER.info(MARKER, "Renewed the record of the player for {}", entry.getKey());
+                            this.refresh(renewed);
+                            this.save();
+                        });
+                    }, e -> MUA2FA.LOGGER.warn(MARKER, "Failed to renew the record for {}", entry.getKey(), e));
+                } catch (URISyntaxException e) {
+                    MUA2FA.LOGGER.warn(MARKER, "Invalid renew uri: {}", server.renewUri(), e);
+                }
+            }
+        }
+    }
+
     public void load() {
         try {
             var gameDir = Minecraft.getInstance().gameDirectory.toPath();
             var data = Objects.requireNonNullElse(NbtIo.read(gameDir.resolve("mua2fa.dat")), new CompoundTag());
-            this.data = CODEC.decode(NbtOps.INSTANCE, data).getOrThrow(IOException::new).getFirst();
+            var codec = MUARecordStore.codec(Minecraft.getInstance().getGameProfile().getId());
+            this.store = codec.decode(NbtOps.INSTANCE, data).getOrThrow(IOException::new).getFirst();
         } catch (IOException e) {
             MUA2FA.LOGGER.warn(MARKER, "Failed to load mua2fa data", e);
         }
+        if (this.renewals == null) {
+            // signatures close to expiry are renewed in the background instead of on the next join
+            var checks = Flux.interval(RENEW_CHECK_DELAY, RENEW_CHECK_INTERVAL);
+            this.renewals = checks.subscribe(i -> Minecraft.getInstance().execute(this::renew));
+        }
     }
 
     public void save() {
+        var store = this.store;
+        var gameDir = Minecraft.getInstance().gameDirectory.toPath();
+        var codec = MUARecordStore.codec(Minecraft.getInstance().getGameProfile().getId());
+        // saves are chained so that an older snapshot never overwrites a newer one
+        this.saving = this.saving.thenRunAsync(() -> save(gameDir, store, codec), Util.ioPool());
+    }
+
+    private static void save(Path gameDir, MUARecordStore store, Codec<MUARecordStore> codec) {
         try {
-            var gameDir = Minecraft.getInstance().gameDirectory.toPath();
             var tmpPath = Files.createTempFile(gameDir, "mua2fa", ".dat");
-            var filtered = this.data.mapLeft(r -> r.filter(Instant.now()));
-            var result = CODEC.encode(filtered, NbtOps.INSTANCE, new CompoundTag());
+            var filtered = store.filter(Instant.now());
+            var result = codec.encode(filtered, NbtOps.INSTANCE, new CompoundTag());
             NbtIo.write((CompoundTag) result.getOrThrow(), tmpPath);
             Util.safeReplaceFile(gameDir.resolve("mua2fa.dat"), tmpPath, gameDir.resolve("mua2fa.dat_old"));
         } catch (IOException | IllegalStateException | ClassCastException e) {
@@ -229,6 +345,35 @@ public final class ConnectScreenListener {
         }
     }
 
+    @FieldsAreNonnullByDefault
+    @MethodsReturnNonnullByDefault
+    @ParametersAreNonnullByDefault
+    private sealed interface Preparation permits BypassRecord, BypassCancel, Prompt {
+        // nothing here
+    }
+
+    @FieldsAreNonnullByDefault
+    @MethodsReturnNonnullByDefault
+    @ParametersAreNonnullByDefault
+    private record BypassRecord(MUARecord record) implements Preparation {
+        // nothing here
+    }
+
+    @FieldsAreNonnullByDefault
+    @MethodsReturnNonnullByDefault
+    @ParametersAreNonnullByDefault
+    private record BypassCancel(OAuthState state) implements Preparation {
+        // nothing here
+    }
+
+    @FieldsAreNonnullByDefault
+    @MethodsReturnNonnullByDefault
+    @ParametersAreNonnullByDefault
+    private record Prompt(OAuthState state, KeyRing keys, Instant expire, @Nullable URI authUri,
+                          @Nullable URI recordUri, boolean includeHideForever) implements Preparation {
+        // nothing here
+    }
+
     @FieldsAreNonnullByDefault
     @MethodsReturnNonnullByDefault
     @ParametersAreNonnullByDefault
@@ -15,8 +15,10 @@ import org.teacon.mua2fa.MUA2FA;
 import org.teacon.mua2fa.data.MUASelector;
 import org.teacon.mua2fa.network.RequestForClientRecordPacket;
 import org.teacon.mua2fa.network.RequestForClientRefreshPacket;
+import org.teacon.mua2fa.network.RequestForClientSessionPacket;
 import org.teacon.mua2fa.network.ResponseToServerCancelPacket;
 import org.teacon.mua2fa.network.ResponseToServerRecordPacket;
+import org.teacon.mua2fa.network.ResponseToServerSessionPacket;
 
 import javax.annotation.ParametersAreNonnullByDefault;
 import java.util.Objects;
@@ -41,7 +43,7 @@ public final class MUA2FAClient {
 
     private void on(FMLClientSetupEvent event) {
         event.enqueueWork(this.listener::load);
-        event.enqueueWork(() -> MUASelector.register(((matcher, player) -> false)));
+        event.enqueueWork(MUASelector::register);
     }
 
     private void on(RegisterPayloadHandlersEvent event) {
@@ -52,7 +54,11 @@ public final class MUA2FAClient {
                 ResponseToServerCancelPacket.STREAM_CODEC, Objects::hash);
         registrar.configurationToClient(RequestForClientRecordPacket.TYPE,
                 RequestForClientRecordPacket.STREAM_CODEC, this.listener::handle);
-        registrar.configurationToClient(RequestForClientRefreshPacket.TYPE,
+        registrar.commonToClient(RequestForClientRefreshPacket.TYPE,
                 RequestForClientRefreshPacket.STREAM_CODEC, this.listener::handle);
+        registrar.configurationToServer(ResponseToServerSessionPacket.TYPE,
+                ResponseToServerSessionPacket.STREAM_CODEC, Objects::hash);
+        registrar.configurationToClient(RequestForClientSessionPacket.TYPE,
+                RequestForClientSessionPacket.STREAM_CODEC, this.listener::handle);
     }
 }
@@ -0,0 +1,126 @@
+package org.teacon.mua2fa.client;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.mojang.datafixers.util.Either;
+import com.mojang.serialization.Codec;
+import com.mojang.serialization.codecs.RecordCodecBuilder;
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.core.UUIDUtil;
+import org.teacon.mua2fa.data.HashBase85;
+import org.teacon.mua2fa.data.MUARecord;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public final class MUARecordStore {
+    public static final MUARecordStore EMPTY = new MUARecordStore(Map.of(), Map.of());
+
+    private static final Codec<Either<MUARecord, MUAEmptyState>> ENTRY_CODEC;
+    private static final Codec<MUARecordStore> ACCOUNTS_CODEC;
+
+    static {
+        ENTRY_CODEC = Codec.mapEither(MUARecord.MAP_CODEC,
+                MUAEmptyState.CODEC.optionalFieldOf("state", MUAEmptyState.INIT)).codec();
+        ACCOUNTS_CODEC = RecordCodecBuilder.create(builder -> builder.group(
+                Codec.unboundedMap(UUIDUtil.STRING_CODEC, ENTRY_CODEC)
+                        .fieldOf("accounts").forGetter(MUARecordStore::getEntries),
+                Codec.unboundedMap(Codec.STRING, Server.CODEC)
+                        .optionalFieldOf("servers", Map.of()).forGetter(MUARecordStore::getServers))
+                .apply(builder, MUARecordStore::new));
+    }
+
+    private final Map<UUID, Either<MUARecord, MUAEmptyState>> entries;
+    private final Map<String, Server> servers;
+
+    private MUARecordStore(Map<UUID, Either<MUARecord, MUAEmptyState>> entries, Map<String, Server> servers) {
+        this.entries = ImmutableMap.copyOf(entries);
+        this.servers = ImmutableMap.copyOf(servers);
+    }
+
+    public static Codec<MUARecordStore> codec(UUID currentProfileId) {
+        // files written before accounts were told apart hold a single entry, which belongs to the current account
+        var legacy = ENTRY_CODEC.xmap(e -> EMPTY.with(e.map(r -> r.getProfile().getId(), s -> currentProfileId), e),
+                s -> s.get(currentProfileId));
+        return Codec.withAlternative(ACCOUNTS_CODEC, legacy);
+    }
+
+    public Map<UUID, Either<MUARecord, MUAEmptyState>> getEntries() {
+        return this.entries;
+    }
+
+    public Map<String, Server> getServers() {
+        return this.servers;
+    }
+
+    public Either<MUARecord, MUAEmptyState> get(UUID profileId) {
+        return this.entries.getOrDefault(profileId, Either.right(MUAEmptyState.INIT));
+    }
+
+    public MUARecordStore with(UUID profileId, Either<MUARecord, MUAEmptyState> entry) {
+        var entries = new LinkedHashMap<>(this.entries);
+        entries.put(profileId, entry);
+        return new MUARecordStore(entries, this.servers);
+    }
+
+    public MUARecordStore withServer(String address, Server server) {
+        var servers = new LinkedHashMap<>(this.servers);
+        servers.put(address, server);
+        return new MUARecordStore(this.entries, servers);
+    }
+
+    public MUARecordStore filter(Instant now) {
+        var entries = new LinkedHashMap<UUID, Either<MUARecord, MUAEmptyState>>(this.entries.size());
+        this.entries.forEach((k, v) -> entries.put(k, v.mapLeft(r -> r.filter(now))));
+        return new MUARecordStore(entries, this.servers);
+    }
+
+    @FieldsAreNonnullByDefault
+    @MethodsReturnNonnullByDefault
+    @ParametersAreNonnullByDefault
+    public record Server(String renewUri, List<HashCode> keys, Duration lifetime) {
+        public static final Codec<Server> CODEC;
+
+        static {
+            var lifetimeCodec = Codec.LONG.xmap(Duration::ofSeconds, Duration::toSeconds);
+            CODEC = RecordCodecBuilder.create(builder -> builder.group(
+                    Codec.STRING.fieldOf("renew_uri").forGetter(Server::renewUri),
+                    Codec.list(HashBase85.CODEC).fieldOf("keys").forGetter(Server::keys),
+                    // servers remembered before the lifetime was stored are not renewed until the next join
+                    lifetimeCodec.optionalFieldOf("lifetime", Duration.ZERO).forGetter(Server::lifetime))
+                    .apply(builder, Server::new));
+        }
+
+        public Server withLifetime(Duration lifetime) {
+            return new Server(this.renewUri, this.keys, lifetime);
+        }
+
+        public Optional<Instant> expireOf(MUARecord record) {
+            return this.target(record).map(r -> r.getSignatures().getFirst().getExpireAt());
+        }
+
+        public Optional<MUARecord> target(MUARecord record) {
+            // only the latest signature of this server is kept, so no other server ever learns about the record
+            var signatures = record.getSignatures().stream().filter(s -> this.keys.contains(s.getKeyBytes()));
+            var latest = signatures.max(Comparator.comparing(MUARecord.SignEntry::getExpireAt));
+            return latest.map(s -> new MUARecord(record.getProfile(), record.getUser(), List.of(s)));
+        }
+
+        public boolean isRenewalOf(MUARecord sent, MUARecord renewed) {
+            // anything other than a record of the same player signed by this server is refused
+            var sameUser = renewed.getUser().equals(sent.getUser());
+            return renewed.getProfile().equals(sent.getProfile()) && sameUser && this.expireOf(renewed).isPresent();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package org.teacon.mua2fa.data;
+
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+import org.teacon.mua2fa.MUA2FA;
+import org.teacon.mua2fa.server.ConfigSpec;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.time.Instant;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
+
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public final class CircuitBreaker {
+    private static final Marker MARKER = MarkerManager.getMarker("Upstream");
+    private static final State CLOSED = new State(0, null, false);
+
+    private final AtomicReference<State> state = new AtomicReference<>(CLOSED);
+    private final ConfigSpec config;
+    private final String name;
+
+    public CircuitBreaker(String name, ConfigSpec config) {
+        this.config = config;
+        this.name = name;
+    }
+
+    public <T> Mono<T> protect(Mono<T> mono) {
+        return Mono.defer(() -> {
+            var permit = this.acquire(Instant.now());
+            if (permit == Permit.REJECTED) {
+                return Mono.error(() -> new IllegalStateException("circuit of " + this.name + " is open"));
+            }
+            var probe = permit == Permit.PROBE;
+            var empty = Mono.<T>error(() -> new NoSuchElementException("empty response from " + this.name));
+            return mono.switchIfEmpty(empty).doOnSuccess(v -> this.state.set(CLOSED))
+                    .doOnError(e -> this.fail(e, probe)).doOnCancel(() -> this.release(probe));
+        });
+    }
+
+    public <T> T call(Callable<? extends T> task) throws Exception {
+        var permit = this.acquire(Instant.now());
+        if (permit == Permit.REJECTED) {
+            throw new IllegalStateException("circuit of " + this.name + " is open");
+        }
+        var probe = permit == Permit.PROBE;
+        try {
+            var result = task.call();
+            this.state.set(CLOSED);
+            return result;
+        } catch (InterruptedException e) {
+            this.release(probe);
+            throw e;
+        } catch (Exception e) {
+            this.fail(e, probe);
+            throw e;
+        }
+    }
+
+    private Permit acquire(Instant now) {
+        while (true) {
+            var s = this.state.get();
+            if (s.openUntil() == null) {
+                return Permit.CLOSED;
+            }
+            if (s.probing() || now.isBefore(s.openUntil())) {
+                return Permit.REJECTED;
+            }
+            // only one request is let through to find out whether the upstream has recovered
+            if (this.state.compareAndSet(s, new State(s.failures(), s.openUntil(), true))) {
+                return Permit.PROBE;
+            }
+        }
+    }
+
+    private void fail(Throwable e, boolean probe) {
+        if (isRefusal(e)) {
+            // the upstream answered but refused the request, which says nothing about its health
+            this.state.set(CLOSED);
+            return;
+        }
+        var threshold = this.config.getMUAUpstreamFailureThreshold();
+        var openUntil = Instant.now().plus(this.config.getMUAUpstreamOpenDuration());
+        var prev = this.state.getAndUpdate(s -> {
+            if (probe) {
+                return new State(s.failures() + 1, openUntil, false);
+            }
+            if (s.openUntil() != null || s.failures() + 1 < threshold) {
+                return new State(s.failures() + 1, s.openUntil(), s.probing());
+            }
+            return new State(s.failures() + 1, openUntil, false);
+        });
+        if (probe || prev.openUntil() == null && prev.failures() + 1 >= threshold) {
+            MUA2FA.LOGGER.warn(MARKER, "Circuit of {} opened until {} after {} failures, the last one: {}",
+                    this.name, openUntil, prev.failures() + 1, e.getMessage());
+        }
+    }
+
+    private static boolean isRefusal(Throwable e) {
+        // wrappers such as execution or reactor exceptions are looked through to find the original error
+        for (var cause = Exceptions.unwrap(e); cause != null; cause = cause.getCause()) {
+            if (cause instanceof IllegalArgumentException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void release(boolean probe) {
+        if (probe) {
+            this.state.updateAndGet(s -> new State(s.failures(), s.openUntil(), false));
+        }
+    }
+
+    @FieldsAreNonnullByDefault
+    @MethodsReturnNonnullByDefault
+    @ParametersAreNonnullByDefault
+    private enum Permit {
+        CLOSED, PROBE, REJECTED
+    }
+
+    @FieldsAreNonnullByDefault
+    @MethodsReturnNonnullByDefault
+    @ParametersAreNonnullByDefault
+    private record State(int failures, @Nullable Instant openUntil, boolean probing) {
+        // nothing here
+    }
+}
@@ -1,9 +1,12 @@
 package org.teacon.mua2fa.data;
 
-import com.google.common.base.Predicates;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.mojang.datafixers.util.Pair;
 import io.netty.buffer.Unpooled;
+import net.i2p.crypto.eddsa.EdDSAEngine;
 import net.i2p.crypto.eddsa.EdDSAPrivateKey;
 import net.i2p.crypto.eddsa.EdDSAPublicKey;
 import net.i2p.crypto.eddsa.spec.EdDSANamedCurveSpec;
@@ -14,6 +17,7 @@ import net.minecraft.FieldsAreNonnullByDefault;
 import net.minecraft.MethodsReturnNonnullByDefault;
 import net.minecraft.network.FriendlyByteBuf;
 import net.minecraft.network.codec.StreamEncoder;
+import net.minecraft.util.StringRepresentable;
 import org.apache.logging.log4j.Marker;
 import org.apache.logging.log4j.MarkerManager;
 import org.teacon.mua2fa.MUA2FA;
@@ -22,13 +26,25 @@ import javax.annotation.ParametersAreNonnullByDefault;
 import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
 import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.security.Signature;
 import java.security.interfaces.EdECPrivateKey;
 import java.security.interfaces.EdECPublicKey;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.time.Duration;
 import java.time.Instant;
-import java.util.function.Predicate;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 @FieldsAreNonnullByDefault
 @MethodsReturnNonnullByDefault
@@ -37,7 +53,13 @@ public final class Ed25519 {
     private static final KeyFactory FACTORY;
     private static final KeyPairGenerator GENERATOR;
     private static final EdDSANamedCurveSpec CURVE_SPEC;
+    private static final ThreadPoolExecutor EXECUTOR;
+    private static final int MAX_PENDING_TASKS = 4096;
+    private static final int WARM_UP_ROUNDS = 256;
     private static final Marker MARKER = MarkerManager.getMarker("Ed25519");
+    private static final Cache<EdECPrivateKey, EdDSAPrivateKey> PRIVATE_KEYS;
+
+    private static volatile Backend signBackend = Backend.JDK;
 
     static {
         try {
@@ -48,6 +70,11 @@ public final class Ed25519 {
             MUA2FA.LOGGER.error(MARKER, "Failed to initialize ED25519 factories", e);
             throw new RuntimeException(e);
         }
+        var threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+        var factory = new ThreadFactoryBuilder().setNameFormat("MUA2FA-Crypto-%d").setDaemon(true).build();
+        var queue = new ArrayBlockingQueue<Runnable>(MAX_PENDING_TASKS);
+        EXECUTOR = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, queue, factory);
+        PRIVATE_KEYS = CacheBuilder.newBuilder().weakKeys().maximumSize(16).build();
     }
 
     private Ed25519() {
@@ -107,27 +134,172 @@ public final class Ed25519 {
             var buffer = new FriendlyByteBuf(Unpooled.buffer());
             codec.encode(buffer, input);
             buffer.writeVarLong(expire.getEpochSecond());
-            var sign = Signature.getInstance("Ed25519");
-            sign.initSign(key);
-            sign.update(buffer.array(), 0, buffer.writerIndex());
-            return HashCode.fromBytes(sign.sign());
+            return HashCode.fromBytes(signBackend.sign(key, buffer.array(), buffer.writerIndex()));
         } catch (GeneralSecurityException e) {
             throw new IllegalArgumentException(e);
         }
     }
 
-    public static <T> Predicate<Instant> verify(EdECPublicKey key, Instant expire, HashCode digest,
-                                                T input, StreamEncoder<? super FriendlyByteBuf, T> codec) {
+    public static <T> CompletableFuture<HashCode> signAsync(EdECPrivateKey key, Instant expire,
+                                                            T input, StreamEncoder<? super FriendlyByteBuf, T> codec) {
+        return supplyAsync(() -> sign(key, expire, input, codec));
+    }
+
+    public static <T> CompletableFuture<Boolean> verifyAsync(EdECPublicKey key, Instant expire, HashCode digest,
+                                                             T input, StreamEncoder<? super FriendlyByteBuf, T> codec,
+                                                             Instant now) {
+        return supplyAsync(() -> verify(key, expire, digest, input, codec).test(now));
+    }
+
+    public static Executor executor() {
+        return EXECUTOR;
+    }
+
+    public static <T> CompletableFuture<T> supplyAsync(Supplier<T> task) {
+        return supplyAsync(task, EXECUTOR);
+    }
+
+    public static <T> CompletableFuture<T> supplyAsync(Supplier<T> task, Executor executor) {
         try {
-            var buffer = new FriendlyByteBuf(Unpooled.buffer());
-            codec.encode(buffer, input);
-            buffer.writeVarLong(expire.getEpochSecond());
-            var sign = Signature.getInstance("Ed25519");
-            sign.initVerify(key);
-            sign.update(buffer.array(), 0, buffer.writerIndex());
-            return sign.verify(digest.asBytes()) ? Predicate.not(expire::isBefore) : Predicates.alwaysFalse();
-        } catch (GeneralSecurityException e) {
-            throw new IllegalArgumentException(e);
+            return CompletableFuture.supplyAsync(task, executor);
+        } catch (RejectedExecutionException e) {
+            // the bounded queue is full, fail fast instead of blocking the caller
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    public static <T> Verification verify(EdECPublicKey key, Instant expire, HashCode digest,
+                                          T input, StreamEncoder<? super FriendlyByteBuf, T> codec) {
+        return Verification.signed(expire, () -> {
+            try {
+                var buffer = new FriendlyByteBuf(Unpooled.buffer());
+                codec.encode(buffer, input);
+                buffer.writeVarLong(expire.getEpochSecond());
+                return verify(key, buffer.array(), buffer.writerIndex(), digest.asBytes());
+            } catch (GeneralSecurityException e) {
+                throw new IllegalArgumentException(e);
+            }
+        });
+    }
+
+    private static boolean verify(EdECPublicKey key, byte[] message,
+                                  int length, byte[] signature) throws GeneralSecurityException {
+        // only the jdk implementation is used for verification since it rejects non-canonical signatures
+        var sign = Signature.getInstance("Ed25519");
+        sign.initVerify(key);
+        sign.update(message, 0, length);
+        return sign.verify(signature);
+    }
+
+    public static CompletableFuture<Duration> warmUpAsync() {
+        // the first players joining after a restart would otherwise pay for provider lookup and jit compilation
+        return supplyAsync(() -> {
+            try {
+                var message = new byte[128];
+                new SecureRandom().nextBytes(message);
+                var pair = generate();
+                var start = System.nanoTime();
+                for (var i = 0; i < WARM_UP_ROUNDS; ++i) {
+                    var signature = Backend.JDK.sign(pair.getSecond(), message, message.length);
+                    if (!verify(pair.getFirst(), message, message.length, signature)) {
+                        throw new IllegalStateException("ED25519 signature failed to verify during warm-up");
+                    }
+                }
+                return Duration.ofNanos(System.nanoTime() - start);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }).whenComplete((elapsed, e) -> {
+            if (e != null) {
+                MUA2FA.LOGGER.warn(MARKER, "Failed to warm up ED25519", e);
+            } else {
+                MUA2FA.LOGGER.debug(MARKER, "Warmed up ED25519 with {} rounds in {}", WARM_UP_ROUNDS, elapsed);
+            }
+        });
+    }
+
+    public static CompletableFuture<Backend> useSignBackendAsync(Backend candidate) {
+        return supplyAsync(() -> {
+            try {
+                var message = new byte[128];
+                new SecureRandom().nextBytes(message);
+                var pair = generate();
+                var expected = Backend.JDK.sign(pair.getSecond(), message, message.length);
+                var signature = candidate.sign(pair.getSecond(), message, message.length);
+                // ed25519 signatures are deterministic, so the backend must produce exactly the same bytes
+                var verified = verify(pair.getFirst(), message, message.length, signature);
+                if (!verified || !Arrays.equals(expected, signature)) {
+                    throw new IllegalStateException("ED25519 backend " + candidate + " produced a different signature");
+                }
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+            signBackend = candidate;
+            return candidate;
+        }).whenComplete((selected, e) -> {
+            if (e != null) {
+                MUA2FA.LOGGER.warn(MARKER, "Failed to use the ED25519 sign backend {}, keeping {}",
+                        candidate, signBackend, e);
+            } else {
+                MUA2FA.LOGGER.info(MARKER, "Using the ED25519 sign backend: {}", selected);
+            }
+        });
+    }
+
+    @FieldsAreNonnullByDefault
+    @MethodsReturnNonnullByDefault
+    @ParametersAreNonnullByDefault
+    public enum Backend implements StringRepresentable {
+        JDK {
+            @Override
+            byte[] sign(EdECPrivateKey key, byte[] message, int length) throws GeneralSecurityException {
+                var sign = Signature.getInstance("Ed25519");
+                sign.initSign(key);
+                sign.update(message, 0, length);
+                return sign.sign();
+            }
+        },
+        I2P {
+            @Override
+            byte[] sign(EdECPrivateKey key, byte[] message, int length) throws GeneralSecurityException {
+                var engine = new EdDSAEngine(MessageDigest.getInstance("SHA-512"));
+                engine.initSign(new EdDSAPrivateKey(new PKCS8EncodedKeySpec(key.getEncoded())));
+                return engine.signOneShot(message, 0, length);
+            }
+        },
+        // the same as i2p, except that the conversion of the private key to the i2p form is cached per key,
+        // which only speeds up signing, since verification always goes through the jdk implementation
+        PRECOMPUTED {
+            @Override
+            byte[] sign(EdECPrivateKey key, byte[] message, int length) throws GeneralSecurityException {
+                var engine = new EdDSAEngine(MessageDigest.getInstance("SHA-512"));
+                try {
+                    engine.initSign(PRIVATE_KEYS.get(key, () -> {
+                        return new EdDSAPrivateKey(new PKCS8EncodedKeySpec(key.getEncoded()));
+                    }));
+                } catch (ExecutionException e) {
+                    throw new GeneralSecurityException(e.getCause());
+                }
+                return engine.signOneShot(message, 0, length);
+            }
+        };
+
+        public static final StringRepresentable.EnumCodec<Backend> CODEC;
+
+        static {
+            CODEC = StringRepresentable.fromEnum(Backend::values);
+        }
+
+        abstract byte[] sign(EdECPrivateKey key, byte[] message, int length) throws GeneralSecurityException;
+
+        @Override
+        public String getSerializedName() {
+            return this.name().toLowerCase(Locale.ROOT);
+        }
+
+        @Override
+        public String toString() {
+            return this.getSerializedName();
         }
     }
 }
@@ -0,0 +1,64 @@
+package org.teacon.mua2fa.data;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.handler.codec.DecoderException;
+import io.netty.handler.codec.EncoderException;
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.network.codec.StreamCodec;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public final class JsonStreamCodec {
+    private JsonStreamCodec() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static <T> StreamCodec<ByteBuf, T> of(Reader<T> reader, Writer<T> writer) {
+        return StreamCodec.of((buf, value) -> write(buf, value, writer), buf -> read(buf, reader));
+    }
+
+    public static <T> T read(ByteBuf buf, Reader<T> reader) {
+        // json is read straight from the buffer, which consumes all the readable bytes
+        try (var json = new JsonReader(new InputStreamReader(new ByteBufInputStream(buf), StandardCharsets.UTF_8))) {
+            return reader.read(json);
+        } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+            throw new DecoderException(e);
+        }
+    }
+
+    public static <T> void write(ByteBuf buf, T value, Writer<T> writer) {
+        try (var json = new JsonWriter(new OutputStreamWriter(new ByteBufOutputStream(buf), StandardCharsets.UTF_8))) {
+            writer.write(json, value);
+        } catch (IOException | IllegalStateException | IllegalArgumentException e) {
+            throw new EncoderException(e);
+        }
+    }
+
+    @FunctionalInterface
+    @FieldsAreNonnullByDefault
+    @MethodsReturnNonnullByDefault
+    @ParametersAreNonnullByDefault
+    public interface Reader<T> {
+        T read(JsonReader reader) throws IOException;
+    }
+
+    @FunctionalInterface
+    @FieldsAreNonnullByDefault
+    @MethodsReturnNonnullByDefault
+    @ParametersAreNonnullByDefault
+    public interface Writer<T> {
+        void write(JsonWriter writer, T value) throws IOException;
+    }
+}
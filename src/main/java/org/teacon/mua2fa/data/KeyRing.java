@@ -0,0 +1,144 @@
+package org.teacon.mua2fa.data;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMaps;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.network.codec.ByteBufCodecs;
+import net.minecraft.network.codec.StreamCodec;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.security.interfaces.EdECPublicKey;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public final class KeyRing {
+    public static final int MAX_SIZE = 64;
+    public static final StreamCodec<ByteBuf, KeyRing> STREAM_CODEC;
+    public static final StreamCodec<ByteBuf, KeyRing> TRUST_STREAM_CODEC;
+
+    static {
+        var keyBytesStreamCodec = HashBase85.ofStreamCodec(256).apply(ByteBufCodecs.list(MAX_SIZE));
+        STREAM_CODEC = StreamCodec.of((buf, keys) -> buf.writeBytes(keys.wireBytes),
+                buf -> fromBytes(keyBytesStreamCodec.decode(buf)));
+        // partner keys are only sent for choosing a signature to answer with, and never become part of the ring
+        TRUST_STREAM_CODEC = StreamCodec.of((buf, keys) -> {
+            STREAM_CODEC.encode(buf, keys);
+            keyBytesStreamCodec.encode(buf, keys.partnerKeyBytes);
+        }, buf -> STREAM_CODEC.decode(buf).withPartners(keyBytesStreamCodec.decode(buf)));
+    }
+
+    private final int activeId;
+    private final byte[] wireBytes;
+    private final List<HashCode> keyBytes;
+    private final List<HashCode> partnerKeyBytes;
+    private final Int2ObjectMap<Entry> entries;
+    private final Map<HashCode, EdECPublicKey> partners;
+
+    public KeyRing(EdECPublicKey active, Collection<? extends EdECPublicKey> verifyOnly) {
+        this(active, verifyOnly, List.of());
+    }
+
+    public KeyRing(EdECPublicKey active, Collection<? extends EdECPublicKey> verifyOnly,
+                   Collection<? extends EdECPublicKey> partners) {
+        var builder = ImmutableList.<HashCode>builderWithExpectedSize(verifyOnly.size() + 1);
+        var entries = new Int2ObjectOpenHashMap<Entry>(verifyOnly.size() + 1);
+        var activeBytes = Ed25519.serialize(active);
+        this.activeId = id(activeBytes);
+        entries.put(this.activeId, new Entry(activeBytes, active));
+        builder.add(activeBytes);
+        for (var key : verifyOnly) {
+            var bytes = Ed25519.serialize(key);
+            var old = entries.putIfAbsent(id(bytes), new Entry(bytes, key));
+            if (old == null) {
+                builder.add(bytes);
+            } else {
+                Preconditions.checkArgument(old.bytes().equals(bytes), "key id collision: %s", id(bytes));
+            }
+        }
+        // partner keys only verify records, and are looked up by their full bytes instead of the truncated id
+        var partnerBuilder = ImmutableList.<HashCode>builderWithExpectedSize(partners.size());
+        var partnerMap = new HashMap<HashCode, EdECPublicKey>(partners.size());
+        for (var key : partners) {
+            var bytes = Ed25519.serialize(key);
+            var own = entries.get(id(bytes));
+            if ((own == null || !own.bytes().equals(bytes)) && partnerMap.putIfAbsent(bytes, key) == null) {
+                partnerBuilder.add(bytes);
+            }
+        }
+        var size = entries.size() + partnerMap.size();
+        Preconditions.checkArgument(size <= MAX_SIZE, "too many keys: %s", size);
+        this.keyBytes = builder.build();
+        this.partnerKeyBytes = partnerBuilder.build();
+        this.entries = Int2ObjectMaps.unmodifiable(entries);
+        this.partners = ImmutableMap.copyOf(partnerMap);
+        // the key ring is sent on every join, so its wire form is encoded only once, without any partner key
+        var buf = Unpooled.buffer();
+        HashBase85.ofStreamCodec(256).apply(ByteBufCodecs.list(MAX_SIZE)).encode(buf, this.keyBytes);
+        this.wireBytes = ByteBufUtil.getBytes(buf);
+        buf.release();
+    }
+
+    private static KeyRing fromBytes(List<HashCode> keyBytes) {
+        Preconditions.checkArgument(!keyBytes.isEmpty(), "empty key ring");
+        var keys = keyBytes.stream().map(Ed25519::single).toList();
+        return new KeyRing(keys.get(0), keys.subList(1, keys.size()));
+    }
+
+    private KeyRing withPartners(List<HashCode> partnerKeyBytes) {
+        var keys = this.keyBytes.stream().map(Ed25519::single).toList();
+        var partners = partnerKeyBytes.stream().map(Ed25519::single).toList();
+        return new KeyRing(keys.get(0), keys.subList(1, keys.size()), partners);
+    }
+
+    public static int id(HashCode keyBytes) {
+        return keyBytes.asInt();
+    }
+
+    public int getActiveId() {
+        return this.activeId;
+    }
+
+    public EdECPublicKey getActive() {
+        return this.entries.get(this.activeId).key();
+    }
+
+    public List<HashCode> getKeyBytes() {
+        return this.keyBytes;
+    }
+
+    public @Nullable EdECPublicKey get(int id) {
+        var entry = this.entries.get(id);
+        return entry != null ? entry.key() : null;
+    }
+
+    public @Nullable EdECPublicKey get(int id, HashCode keyBytes) {
+        var entry = this.entries.get(id);
+        return entry != null && entry.bytes().equals(keyBytes) ? entry.key() : this.partners.get(keyBytes);
+    }
+
+    public boolean isPartner(HashCode keyBytes) {
+        return this.partners.containsKey(keyBytes);
+    }
+
+    @FieldsAreNonnullByDefault
+    @MethodsReturnNonnullByDefault
+    @ParametersAreNonnullByDefault
+    private record Entry(HashCode bytes, EdECPublicKey key) {
+        // nothing here
+    }
+}
@@ -0,0 +1,44 @@
+package org.teacon.mua2fa.data;
+
+import com.google.common.hash.HashCode;
+import com.mojang.datafixers.util.Pair;
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.Util;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.time.Duration;
+
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public final class LocalRecordBroker implements RecordBroker {
+    private static final Scheduler IO_SCHEDULER = Schedulers.fromExecutor(Util.ioPool());
+    private static final Sinks.EmitFailureHandler RETRY = Sinks.EmitFailureHandler.busyLooping(Duration.ofSeconds(1L));
+
+    private final Sinks.Many<Pair<HashCode, MUARecord.User>> records;
+
+    public LocalRecordBroker() {
+        this.records = Sinks.many().replay().limit(OAuthHttp.NETWORK_TOLERANCE, IO_SCHEDULER);
+    }
+
+    @Override
+    public void publish(HashCode state, MUARecord.User user) {
+        // emissions may come from several event loops at the same time
+        this.records.emitNext(Pair.of(state, user), RETRY);
+    }
+
+    @Override
+    public Flux<MUARecord.User> subscribe(HashCode state) {
+        return this.records.asFlux().filter(pair -> state.equals(pair.getFirst())).map(Pair::getSecond);
+    }
+
+    @Override
+    public void close() {
+        this.records.tryEmitComplete();
+    }
+}
@@ -0,0 +1,142 @@
+package org.teacon.mua2fa.data;
+
+import com.google.common.hash.HashCode;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.UUID;
+
+@StackTrace(false)
+@Category({"MUA2FA", "Login"})
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public abstract class LoginEvent extends Event {
+    private static final int SIGNATURE_PREFIX_LENGTH = 16;
+
+    @Label("Player")
+    @Description("The uuid of the player logging in")
+    private String playerId = "";
+
+    @Label("State Signature")
+    @Description("The hex prefix of the oauth state signature, empty if not available")
+    private String stateSignature = "";
+
+    public abstract String stage();
+
+    public final void commitFor(OAuthState state) {
+        this.commitFor(state.id(), state.signature());
+    }
+
+    public final void commitFor(UUID playerId, @Nullable HashCode stateSignature) {
+        // fields are only filled when the event is actually recorded
+        if (this.shouldCommit()) {
+            this.playerId = playerId.toString();
+            if (stateSignature != null) {
+                var hex = stateSignature.toString();
+                this.stateSignature = hex.substring(0, Math.min(hex.length(), SIGNATURE_PREFIX_LENGTH));
+            }
+            this.commit();
+        }
+    }
+
+    @Name("mua2fa.StateSign")
+    @Label("OAuth State Sign")
+    @Description("The oauth state signing in the configuration task")
+    @FieldsAreNonnullByDefault
+    @MethodsReturnNonnullByDefault
+    @ParametersAreNonnullByDefault
+    public static final class StateSign extends LoginEvent {
+        @Override
+        public String stage() {
+            return "state_sign";
+        }
+    }
+
+    @Name("mua2fa.Redirect")
+    @Label("OAuth Redirect")
+    @Description("The browser of the player arriving at the redirect endpoint")
+    @FieldsAreNonnullByDefault
+    @MethodsReturnNonnullByDefault
+    @ParametersAreNonnullByDefault
+    public static final class Redirect extends LoginEvent {
+        @Override
+        public String stage() {
+            return "redirect";
+        }
+    }
+
+    @Name("mua2fa.UpstreamToken")
+    @Label("Upstream Token Request")
+    @Description("The authorization token request to the mua union auth server")
+    @FieldsAreNonnullByDefault
+    @MethodsReturnNonnullByDefault
+    @ParametersAreNonnullByDefault
+    public static final class UpstreamToken extends LoginEvent {
+        @Override
+        public String stage() {
+            return "token";
+        }
+    }
+
+    @Name("mua2fa.UpstreamUser")
+    @Label("Upstream User Request")
+    @Description("The user information request to the mua union auth server")
+    @FieldsAreNonnullByDefault
+    @MethodsReturnNonnullByDefault
+    @ParametersAreNonnullByDefault
+    public static final class UpstreamUser extends LoginEvent {
+        @Override
+        public String stage() {
+            return "user";
+        }
+    }
+
+    @Name("mua2fa.RecordSign")
+    @Label("Record Sign")
+    @Description("The record signing when the client polls the record endpoint")
+    @FieldsAreNonnullByDefault
+    @MethodsReturnNonnullByDefault
+    @ParametersAreNonnullByDefault
+    public static final class RecordSign extends LoginEvent {
+        @Override
+        public String stage() {
+            return "record_sign";
+        }
+    }
+
+    @Name("mua2fa.Verify")
+    @Label("Server Verification")
+    @Description("The verification of a record or a cancel sent back by the client")
+    @FieldsAreNonnullByDefault
+    @MethodsReturnNonnullByDefault
+    @ParametersAreNonnullByDefault
+    public static final class Verify extends LoginEvent {
+        @Label("Cancelled")
+        private boolean cancelled;
+
+        @Label("Verified")
+        private boolean verified;
+
+        public Verify(boolean cancelled) {
+            this.cancelled = cancelled;
+        }
+
+        public void setVerified(boolean verified) {
+            this.verified = verified;
+        }
+
+        @Override
+        public String stage() {
+            return this.cancelled ? "verify_cancel" : "verify";
+        }
+    }
+}
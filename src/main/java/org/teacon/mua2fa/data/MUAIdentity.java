@@ -0,0 +1,90 @@
+package org.teacon.mua2fa.data;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.world.entity.player.Player;
+import net.neoforged.neoforge.attachment.AttachmentType;
+import net.neoforged.neoforge.registries.DeferredRegister;
+import net.neoforged.neoforge.registries.NeoForgeRegistries;
+import org.teacon.mua2fa.MUA2FA;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public final class MUAIdentity {
+    public static final MUAIdentity NONE = new MUAIdentity("", "");
+    public static final DeferredRegister<AttachmentType<?>> ATTACHMENT_TYPES;
+    public static final Supplier<AttachmentType<MUAIdentity>> ATTACHMENT;
+
+    private static final Interner<MUAIdentity> IDENTITIES = Interners.newWeakInterner();
+    private static final Interner<String> PREFIXES = Interners.newWeakInterner();
+
+    static {
+        ATTACHMENT_TYPES = DeferredRegister.create(NeoForgeRegistries.ATTACHMENT_TYPES, MUA2FA.ID);
+        // no serializer, so the identity only lives as long as the connection which verified it
+        ATTACHMENT = ATTACHMENT_TYPES.register("identity", () -> AttachmentType.builder(() -> NONE).build());
+    }
+
+    private final String sub;
+    private final String prefix;
+
+    private MUAIdentity(String sub, String prefix) {
+        this.sub = sub;
+        this.prefix = prefix;
+    }
+
+    public static MUAIdentity of(String sub) {
+        // identities are interned so that matching them is a reference comparison
+        return IDENTITIES.intern(new MUAIdentity(sub, prefix(sub)));
+    }
+
+    public static MUAIdentity of(Optional<String> sub) {
+        return sub.map(MUAIdentity::of).orElse(NONE);
+    }
+
+    public static MUAIdentity get(Player player) {
+        return player.getData(ATTACHMENT);
+    }
+
+    public static String prefix(String sub) {
+        var index = sub.indexOf(':');
+        return PREFIXES.intern(index < 0 ? "" : sub.substring(0, index + 1));
+    }
+
+    public boolean isPresent() {
+        return this != NONE;
+    }
+
+    public String getSub() {
+        return this.sub;
+    }
+
+    public String getPrefix() {
+        return this.prefix;
+    }
+
+    public Optional<String> toOptional() {
+        return this.isPresent() ? Optional.of(this.sub) : Optional.empty();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof MUAIdentity that && this.isPresent() == that.isPresent() && this.sub.equals(that.sub);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.sub.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return this.isPresent() ? this.sub : "<none>";
+    }
+}
@@ -1,14 +1,18 @@
 package org.teacon.mua2fa.data;
 
 import com.google.common.base.Preconditions;
-import com.google.common.base.Predicates;
 import com.google.common.collect.ImmutableList;
 import com.google.common.hash.HashCode;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
 import com.mojang.authlib.GameProfile;
 import com.mojang.datafixers.util.Pair;
 import com.mojang.serialization.Codec;
 import com.mojang.serialization.MapCodec;
 import com.mojang.serialization.codecs.RecordCodecBuilder;
+import com.mojang.util.UndashedUuid;
 import io.netty.buffer.ByteBuf;
 import net.minecraft.FieldsAreNonnullByDefault;
 import net.minecraft.MethodsReturnNonnullByDefault;
@@ -16,16 +20,22 @@ import net.minecraft.core.UUIDUtil;
 import net.minecraft.network.codec.ByteBufCodecs;
 import net.minecraft.network.codec.StreamCodec;
 import net.minecraft.util.ExtraCodecs;
+import net.minecraft.util.StringUtil;
 
 import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
 import java.security.interfaces.EdECPrivateKey;
 import java.security.interfaces.EdECPublicKey;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.function.Predicate;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 @FieldsAreNonnullByDefault
 @MethodsReturnNonnullByDefault
@@ -33,6 +43,7 @@ import java.util.function.Predicate;
 public final class MUARecord {
     public static final MapCodec<MUARecord> MAP_CODEC;
     public static final StreamCodec<ByteBuf, MUARecord> STREAM_CODEC;
+    public static final StreamCodec<ByteBuf, MUARecord> JSON_STREAM_CODEC;
     public static final StreamCodec<ByteBuf, Pair<GameProfile, User>> STREAM_CODEC_PART;
 
     static {
@@ -49,6 +60,70 @@ public final class MUARecord {
                 SignEntry.STREAM_CODEC.apply(ByteBufCodecs.list()), MUARecord::getSignatures, MUARecord::new);
         STREAM_CODEC_PART = StreamCodec.composite(
                 ByteBufCodecs.GAME_PROFILE, Pair::getFirst, User.STREAM_CODEC, Pair::getSecond, Pair::of);
+        JSON_STREAM_CODEC = JsonStreamCodec.of(MUARecord::read, MUARecord::write);
+    }
+
+    private static MUARecord read(JsonReader reader) throws IOException {
+        var id = (UUID) null;
+        var name = (String) null;
+        var user = (User) null;
+        var signatures = (List<SignEntry>) null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "id" -> id = readUUID(reader);
+                case "name" -> name = reader.nextString();
+                case "mua" -> user = User.read(reader);
+                case "signatures" -> {
+                    signatures = new ArrayList<>();
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        signatures.add(SignEntry.read(reader));
+                    }
+                    reader.endArray();
+                }
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (id == null || name == null || user == null || signatures == null) {
+            throw new MalformedJsonException("missing fields of the record at " + reader.getPath());
+        }
+        if (!StringUtil.isValidPlayerName(name)) {
+            throw new MalformedJsonException("invalid player name of the record: " + name);
+        }
+        return new MUARecord(new GameProfile(id, name), user, signatures);
+    }
+
+    private static void write(JsonWriter writer, MUARecord record) throws IOException {
+        writer.beginObject();
+        writer.name("id").beginArray();
+        for (var i : UUIDUtil.uuidToIntArray(record.profile.getId())) {
+            writer.value(i);
+        }
+        writer.endArray();
+        writer.name("name").value(record.profile.getName());
+        writer.name("mua");
+        User.write(writer, record.user);
+        writer.name("signatures").beginArray();
+        for (var signature : record.signatures) {
+            SignEntry.write(writer, signature);
+        }
+        writer.endArray();
+        writer.endObject();
+    }
+
+    private static UUID readUUID(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+            var ints = new int[4];
+            reader.beginArray();
+            for (var i = 0; i < ints.length; ++i) {
+                ints[i] = reader.nextInt();
+            }
+            reader.endArray();
+            return UUIDUtil.uuidFromIntArray(ints);
+        }
+        return UndashedUuid.fromStringLenient(reader.nextString());
     }
 
     private final User user;
@@ -73,18 +148,40 @@ public final class MUARecord {
         return this.signatures;
     }
 
-    public Predicate<Instant> verify(GameProfile profile, EdECPublicKey key) {
+    public Verification verify(GameProfile profile, KeyRing keys) {
+        if (!this.profile.equals(profile)) {
+            return Verification.invalid();
+        }
+        var pair = Pair.of(this.profile, this.user);
+        var builder = ImmutableList.<Verification>builderWithExpectedSize(this.signatures.size());
+        for (var s : this.signatures) {
+            var key = keys.get(s.getKeyId(), s.getKeyBytes());
+            if (key != null) {
+                builder.add(Ed25519.verify(key, s.getExpireAt(), s.getSignature(), pair, STREAM_CODEC_PART));
+            }
+        }
+        return Verification.anyOf(builder.build());
+    }
+
+    public Optional<MUARecord> target(GameProfile profile, KeyRing keys, Instant now) {
         if (!this.profile.equals(profile)) {
-            return Predicates.alwaysFalse();
+            return Optional.empty();
         }
-        var keyBytes = Ed25519.serialize(key);
         var pair = Pair.of(this.profile, this.user);
-        return i -> this.signatures.stream().anyMatch(s -> {
-            if (s.getKeyBytes().equals(keyBytes)) {
-                return Ed25519.verify(key, s.getExpireAt(), s.getSignature(), pair, STREAM_CODEC_PART).test(i);
+        // signatures of the active key come first so that the server does not need to sign the record again
+        var order = Comparator.<SignEntry, Boolean>comparing(s -> s.getKeyId() != keys.getActiveId())
+                .thenComparing(SignEntry::getExpireAt, Comparator.reverseOrder());
+        return this.signatures.stream().sorted(order).filter(s -> {
+            var key = keys.get(s.getKeyId(), s.getKeyBytes());
+            if (key == null) {
+                return false;
             }
-            return false;
-        });
+            return Ed25519.verify(key, s.getExpireAt(), s.getSignature(), pair, STREAM_CODEC_PART).test(now);
+        }).findFirst().map(s -> new MUARecord(this.profile, this.user, List.of(s)));
+    }
+
+    public CompletableFuture<Boolean> verifyAsync(GameProfile profile, KeyRing keys, Instant now) {
+        return Ed25519.supplyAsync(() -> this.verify(profile, keys).test(now));
     }
 
     public MUARecord refresh(MUARecord newOne) {
@@ -134,21 +231,59 @@ public final class MUARecord {
                     HashBase85.ofStreamCodec(512), SignEntry::getSignature, SignEntry::new);
         }
 
+        private static SignEntry read(JsonReader reader) throws IOException {
+            var keyBytes = (HashCode) null;
+            var expireAt = (Instant) null;
+            var signature = (HashCode) null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "key" -> keyBytes = HashBase85.decode(reader.nextString());
+                    case "expire_at" -> expireAt = Instant.ofEpochSecond(reader.nextLong());
+                    case "signature" -> signature = HashBase85.decode(reader.nextString());
+                    default -> reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (keyBytes == null || expireAt == null || signature == null) {
+                throw new MalformedJsonException("missing fields of the signature at " + reader.getPath());
+            }
+            return new SignEntry(keyBytes, expireAt, signature);
+        }
+
+        private static void write(JsonWriter writer, SignEntry entry) throws IOException {
+            writer.beginObject();
+            writer.name("key").value(HashBase85.encode(entry.keyBytes));
+            writer.name("expire_at").value(entry.expireAt.getEpochSecond());
+            writer.name("signature").value(HashBase85.encode(entry.signature));
+            writer.endObject();
+        }
+
+        private final int keyId;
         private final HashCode keyBytes;
         private final EdECPublicKey key;
         private final Instant expireAt;
         private final HashCode signature;
 
         public SignEntry(HashCode keyBytes, Instant expireAt, HashCode signature) {
+            this(keyBytes, Ed25519.single(keyBytes), expireAt, signature);
+        }
+
+        private SignEntry(HashCode keyBytes, EdECPublicKey key, Instant expireAt, HashCode signature) {
             Preconditions.checkArgument(keyBytes.bits() == 256);
             this.keyBytes = keyBytes;
-            this.key = Ed25519.single(keyBytes);
+            this.keyId = KeyRing.id(keyBytes);
+            this.key = key;
             Preconditions.checkArgument(expireAt.isAfter(Instant.EPOCH));
             this.expireAt = expireAt.truncatedTo(ChronoUnit.SECONDS);
             Preconditions.checkArgument(signature.bits() == 512);
             this.signature = signature;
         }
 
+        public int getKeyId() {
+            return this.keyId;
+        }
+
         public HashCode getKeyBytes() {
             return this.keyBytes;
         }
@@ -172,6 +307,7 @@ public final class MUARecord {
     public record User(String sub, String nickname, String email) {
         public static final Codec<User> CODEC;
         public static final StreamCodec<ByteBuf, User> STREAM_CODEC;
+        public static final StreamCodec<ByteBuf, User> JSON_STREAM_CODEC;
 
         static {
             CODEC = RecordCodecBuilder.create(builder -> builder.group(
@@ -182,12 +318,47 @@ public final class MUARecord {
                     ByteBufCodecs.STRING_UTF8, User::sub,
                     ByteBufCodecs.STRING_UTF8, User::nickname,
                     ByteBufCodecs.STRING_UTF8, User::email, User::new);
+            JSON_STREAM_CODEC = JsonStreamCodec.of(User::read, User::write);
+        }
+
+        private static User read(JsonReader reader) throws IOException {
+            var sub = (String) null;
+            var nickname = (String) null;
+            var email = (String) null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "sub" -> sub = reader.nextString();
+                    case "nickname" -> nickname = reader.nextString();
+                    case "email" -> email = reader.nextString();
+                    default -> reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (sub == null || nickname == null || email == null) {
+                throw new MalformedJsonException("missing fields of the user at " + reader.getPath());
+            }
+            return new User(sub, nickname, email);
+        }
+
+        private static void write(JsonWriter writer, User user) throws IOException {
+            writer.beginObject();
+            writer.name("sub").value(user.sub);
+            writer.name("nickname").value(user.nickname);
+            writer.name("email").value(user.email);
+            writer.endObject();
+        }
+
+        public CompletableFuture<MUARecord> signAsync(GameProfile profile, Instant expire,
+                                                      KeyRing keys, EdECPrivateKey key) {
+            return Ed25519.supplyAsync(() -> this.sign(profile, expire, keys, key));
         }
 
-        public MUARecord sign(GameProfile profile, Instant expire, Pair<EdECPublicKey, EdECPrivateKey> keys) {
-            var keyBytes = Ed25519.serialize(keys.getFirst());
-            var signature = Ed25519.sign(keys.getSecond(), expire, Pair.of(profile, this), STREAM_CODEC_PART);
-            return new MUARecord(profile, this, List.of(new SignEntry(keyBytes, expire, signature)));
+        public MUARecord sign(GameProfile profile, Instant expire, KeyRing keys, EdECPrivateKey key) {
+            var keyBytes = keys.getKeyBytes().getFirst();
+            var signature = Ed25519.sign(key, expire, Pair.of(profile, this), STREAM_CODEC_PART);
+            var entry = new SignEntry(keyBytes, keys.getActive(), expire, signature);
+            return new MUARecord(profile, this, List.of(entry));
         }
     }
 }
@@ -9,7 +9,6 @@ import net.minecraft.network.chat.Component;
 import net.minecraft.server.level.ServerPlayer;
 
 import javax.annotation.ParametersAreNonnullByDefault;
-import java.util.function.BiPredicate;
 import java.util.function.Predicate;
 
 @FieldsAreNonnullByDefault
@@ -23,11 +22,11 @@ public final class MUASelector {
         throw new UnsupportedOperationException();
     }
 
-    public static void register(BiPredicate<Matcher, ServerPlayer> filter) {
-        EntitySelectorOptions.register(ID, parser -> handle(parser, filter), Predicates.alwaysTrue(), TOOLTIP);
+    public static void register() {
+        EntitySelectorOptions.register(ID, MUASelector::handle, Predicates.alwaysTrue(), TOOLTIP);
     }
 
-    private static void handle(EntitySelectorParser parser, BiPredicate<Matcher, ServerPlayer> filter) {
+    private static void handle(EntitySelectorParser parser) {
         var reader = parser.getReader();
         var inv = parser.shouldInvertValue();
         if (reader.canRead() && reader.peek() == '*') {
@@ -36,7 +35,8 @@ public final class MUASelector {
                 reader.skip();
                 reader.skip();
             }
-            parser.addPredicate(e -> e instanceof ServerPlayer p && inv != filter.test(Everything.INSTANCE, p));
+            var matcher = Everything.INSTANCE;
+            parser.addPredicate(e -> e instanceof ServerPlayer p && inv != matcher.test(MUAIdentity.get(p)));
             return;
         }
         var c = reader.readUnquotedString();
@@ -44,20 +44,23 @@ public final class MUASelector {
             reader.skip();
             if (reader.canRead() && reader.peek() == '*') {
                 reader.skip();
-                parser.addPredicate(e -> e instanceof ServerPlayer p && inv != filter.test(new Prefix(c + ":"), p));
+                var matcher = new Prefix(MUAIdentity.prefix(c + ":"));
+                parser.addPredicate(e -> e instanceof ServerPlayer p && inv != matcher.test(MUAIdentity.get(p)));
                 return;
             }
             var s = reader.readUnquotedString();
-            parser.addPredicate(e -> e instanceof ServerPlayer p && inv != filter.test(new Exact(c + ":" + s), p));
+            var matcher = new Exact(MUAIdentity.of(c + ":" + s));
+            parser.addPredicate(e -> e instanceof ServerPlayer p && inv != matcher.test(MUAIdentity.get(p)));
             return;
         }
-        parser.addPredicate(e -> e instanceof ServerPlayer p && inv != filter.test(new Exact(c), p));
+        var matcher = new Exact(MUAIdentity.of(c));
+        parser.addPredicate(e -> e instanceof ServerPlayer p && inv != matcher.test(MUAIdentity.get(p)));
     }
 
     @FieldsAreNonnullByDefault
     @MethodsReturnNonnullByDefault
     @ParametersAreNonnullByDefault
-    public sealed interface Matcher extends Predicate<String> permits Everything, Prefix, Exact {
+    public sealed interface Matcher extends Predicate<MUAIdentity> permits Everything, Prefix, Exact {
         // nothing here
     }
 
@@ -66,18 +69,19 @@ public final class MUASelector {
     @ParametersAreNonnullByDefault
     public record Prefix(String prefix) implements Matcher {
         @Override
-        public boolean test(String sub) {
-            return sub.startsWith(this.prefix);
+        public boolean test(MUAIdentity identity) {
+            // prefixes are interned as well, and the prefix of identities without a colon never matches
+            return identity.getPrefix() == this.prefix;
         }
     }
 
     @FieldsAreNonnullByDefault
     @MethodsReturnNonnullByDefault
     @ParametersAreNonnullByDefault
-    public record Exact(String sub) implements Matcher {
+    public record Exact(MUAIdentity identity) implements Matcher {
         @Override
-        public boolean test(String sub) {
-            return sub.equals(this.sub);
+        public boolean test(MUAIdentity identity) {
+            return identity == this.identity;
         }
     }
 
@@ -88,8 +92,8 @@ public final class MUASelector {
         INSTANCE;
 
         @Override
-        public boolean test(String sub) {
-            return true;
+        public boolean test(MUAIdentity identity) {
+            return identity.isPresent();
         }
     }
 }
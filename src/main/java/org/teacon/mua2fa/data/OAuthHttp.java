@@ -1,57 +1,73 @@
 package org.teacon.mua2fa.data;
 
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Iterables;
-import com.google.gson.JsonObject;
-import com.google.gson.internal.Streams;
+import com.google.common.hash.HashCode;
 import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.MalformedJsonException;
 import com.mojang.authlib.GameProfile;
 import com.mojang.datafixers.util.Either;
 import com.mojang.datafixers.util.Pair;
-import com.mojang.serialization.Codec;
-import com.mojang.serialization.DataResult;
-import com.mojang.serialization.JsonOps;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.DecoderException;
 import io.netty.handler.codec.http.HttpHeaderNames;
 import io.netty.handler.codec.http.QueryStringDecoder;
 import io.netty.handler.codec.http.QueryStringEncoder;
 import net.minecraft.FieldsAreNonnullByDefault;
 import net.minecraft.MethodsReturnNonnullByDefault;
-import net.minecraft.Util;
-import net.minecraft.util.GsonHelper;
+import net.minecraft.network.codec.StreamDecoder;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.Marker;
 import org.apache.logging.log4j.MarkerManager;
 import org.teacon.mua2fa.MUA2FA;
+import org.teacon.mua2fa.server.AuditLog;
 import org.teacon.mua2fa.server.ConfigSpec;
+import org.teacon.mua2fa.server.OAuthHandlerMode;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.core.publisher.Sinks;
-import reactor.core.scheduler.Scheduler;
-import reactor.core.scheduler.Schedulers;
 import reactor.netty.ByteBufFlux;
 import reactor.netty.ByteBufMono;
 import reactor.netty.DisposableServer;
+import reactor.netty.http.Http2SslContextSpec;
+import reactor.netty.http.HttpProtocol;
 import reactor.netty.http.client.HttpClient;
 import reactor.netty.http.client.HttpClientResponse;
 import reactor.netty.http.server.HttpServer;
+import reactor.netty.http.server.HttpServerRequest;
+import reactor.netty.resources.LoopResources;
 
 import javax.annotation.ParametersAreNonnullByDefault;
 import java.io.Closeable;
-import java.io.StringReader;
+import java.io.IOException;
 import java.net.URI;
-import java.nio.charset.StandardCharsets;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.time.Duration;
+import java.time.Instant;
 import java.time.OffsetDateTime;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static io.netty.handler.codec.http.HttpHeaderValues.APPLICATION_JSON;
 import static io.netty.handler.codec.http.HttpHeaderValues.APPLICATION_X_WWW_FORM_URLENCODED;
-import static net.minecraft.server.network.ServerConnectionListener.SERVER_EPOLL_EVENT_GROUP;
-import static net.minecraft.server.network.ServerConnectionListener.SERVER_EVENT_GROUP;
 
 @FieldsAreNonnullByDefault
 @MethodsReturnNonnullByDefault
@@ -67,37 +83,118 @@ public final class OAuthHttp implements Closeable {
     private static final String STARTED = "Started oauth http server at {}.";
     private static final String STOPPING = "Stopping oauth http server at {} ...";
     private static final String STOPPED = "Stopped oauth http server.";
+    private static final String LOOPS_PREFIX = "mua2fa-oauth";
+    private static final int REJECTED_CACHE_SIZE = 4096;
+    private static final int MAX_RENEW_CONTENT_LENGTH = 16384;
+    private static final int MAX_RENEWALS_PER_ADDRESS = 8;
+    private static final Duration RENEWAL_WINDOW = Duration.ofMinutes(1L);
     private static final String HTML = """
             <!doctype html><html><head><meta charset="utf-8"><meta name="viewport"
             content="width=device-width,initial-scale=1"><title>MUA2FA</title></head>
             <body><pre style="height:88vh;font-size:4vh;display:flex;align-items:center;
             justify-content:center;text-align:center;color:%s">%s</pre></body></html>""";
 
-    private static final Scheduler IO_SCHEDULER = Schedulers.fromExecutor(Util.ioPool());
+    private final AtomicReference<DisposableServer> server = new AtomicReference<>();
+    private final AtomicReference<RecordBroker> broker = new AtomicReference<>();
+    private final AtomicReference<LoopResources> loops = new AtomicReference<>();
+    private final AtomicReference<ExecutorService> handlers = new AtomicReference<>();
+    private final AtomicReference<java.net.http.HttpClient> blockingClient = new AtomicReference<>();
+    private final Cache<HashCode, Boolean> rejected = CacheBuilder.newBuilder()
+            .maximumSize(REJECTED_CACHE_SIZE).expireAfterWrite(MUA_REQUEST_COUNTDOWN.plus(NETWORK_TOLERANCE)).build();
+    private final Cache<String, AtomicInteger> renewals = CacheBuilder.newBuilder()
+            .maximumSize(REJECTED_CACHE_SIZE).expireAfterWrite(RENEWAL_WINDOW).build();
+    private final AuditLog audit;
 
-    private static final Codec<MUARecord> RECORD_CODEC = MUARecord.MAP_CODEC.codec();
+    public OAuthHttp(AuditLog audit) {
+        this.audit = audit;
+    }
 
-    private final AtomicReference<DisposableServer> server = new AtomicReference<>();
-    private final Sinks.Many<MUARecord.User> records = Sinks.many().replay().limit(NETWORK_TOLERANCE, IO_SCHEDULER);
+    private static <T> Mono<T> json(HttpClientResponse res, ByteBufMono body, StreamDecoder<ByteBuf, T> decoder) {
+        return body.map(buf -> {
+            var code = res.status().code();
+            // server errors are counted by the circuit breaker while client errors are not
+            Preconditions.checkState(code < 500, "upstream error: %s", code);
+            Preconditions.checkArgument(code == 200, "upstream refused: %s", code);
+            return decoder.decode(buf);
+        });
+    }
 
-    private static Mono<JsonObject> json(HttpClientResponse res, ByteBufMono body) {
-        return body.asString().flatMap(content -> Mono.fromCallable(() -> {
-            Preconditions.checkArgument(res.status().code() == 200);
-            try (var reader = new JsonReader(new StringReader(content))) {
-                return Streams.parse(reader).getAsJsonObject();
+    private static <T> T json(java.net.http.HttpClient client,
+                              HttpRequest req, StreamDecoder<ByteBuf, T> decoder) throws Exception {
+        var res = client.send(req, HttpResponse.BodyHandlers.ofByteArray());
+        var code = res.statusCode();
+        // server errors are counted by the circuit breaker while client errors are not
+        Preconditions.checkState(code < 500, "upstream error: %s", code);
+        Preconditions.checkArgument(code == 200, "upstream refused: %s", code);
+        return decoder.decode(Unpooled.wrappedBuffer(res.body()));
+    }
+
+    private static String token(JsonReader reader) throws IOException {
+        var token = (String) null;
+        var tokenType = (String) null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "access_token" -> token = reader.nextString();
+                case "token_type" -> tokenType = reader.nextString();
+                default -> reader.skipValue();
             }
-        }));
+        }
+        reader.endObject();
+        if (token == null || tokenType == null) {
+            throw new MalformedJsonException("missing fields of the token at " + reader.getPath());
+        }
+        Preconditions.checkArgument("bearer".equalsIgnoreCase(tokenType));
+        return tokenType + " " + token;
     }
 
-    private static Either<OAuthState, Exception> state(Map<String, List<String>> params) {
+    private static ByteBuf encode(ByteBufAllocator alloc, MUARecord record) {
+        var buf = alloc.buffer();
         try {
+            MUARecord.JSON_STREAM_CODEC.encode(buf, record);
+            return buf;
+        } catch (RuntimeException e) {
+            buf.release();
+            throw e;
+        }
+    }
+
+    private Either<OAuthState, Exception> state(Map<String, List<String>> params, Instant now) {
+        try {
+            // cheap checks come first so that junk and stale states never reach the decoder or the crypto pool
             var stateStr = Iterables.getOnlyElement(params.getOrDefault("state", List.of()));
-            return Either.left(OAuthState.fromString(stateStr));
-        } catch (IllegalArgumentException | NoSuchElementException e) {
+            Preconditions.checkArgument(OAuthState.isWellFormed(stateStr), "malformed state");
+            var state = OAuthState.fromString(stateStr);
+            Preconditions.checkArgument(state.expire().isAfter(now), "expired state: %s", state.expire());
+            Preconditions.checkArgument(this.rejected.getIfPresent(state.digest()) == null, "rejected state");
+            return Either.left(state);
+        } catch (IllegalArgumentException | NoSuchElementException | DecoderException e) {
             return Either.right(e);
         }
     }
 
+    private CompletableFuture<Boolean> verifyAsync(OAuthState state, KeyRing keys, Instant now) {
+        if (keys.get(state.keyId()) == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return state.verifyAsync(keys, now).thenApply(verified -> {
+            if (!verified) {
+                this.rejected.put(state.digest(), Boolean.TRUE);
+            }
+            return verified;
+        });
+    }
+
+    private Mono<OAuthState> verify(OAuthState state, KeyRing keys, Instant now) {
+        var invalid = Mono.<OAuthState>error(() -> new IllegalArgumentException("invalid signature: " + state));
+        return Mono.fromFuture(() -> this.verifyAsync(state, keys, now)).flatMap(v -> v ? Mono.just(state) : invalid);
+    }
+
+    private OAuthState verifyBlocking(OAuthState state, KeyRing keys, Instant now) {
+        Preconditions.checkArgument(this.verifyAsync(state, keys, now).join(), "invalid signature: %s", state);
+        return state;
+    }
+
     private static Either<String, Exception> code(Map<String, List<String>> params) {
         try {
             return Either.left(Iterables.getOnlyElement(params.getOrDefault("code", List.of())));
@@ -106,14 +203,78 @@ public final class OAuthHttp implements Closeable {
         }
     }
 
-    public static URI auth(ConfigSpec conf) {
-        var relative = FilenameUtils.getName(conf.getServerExternalUri().getPath());
-        return conf.getServerExternalUri().resolve(StringUtils.defaultIfEmpty(relative, ".") + "/redirect");
+    private static QueryStringEncoder tokenForm(ConfigSpec conf, Either<String, Exception> codeEither) {
+        var enc = new QueryStringEncoder("/");
+        enc.addParam("grant_type", "authorization_code");
+        codeEither.ifLeft(code -> enc.addParam("code", code));
+        enc.addParam("client_id", conf.getMUAUnionAuthClientId());
+        enc.addParam("client_secret", conf.getMUAUnionAuthClientSecret());
+        enc.addParam("redirect_uri", conf.getDerived().externalUriString());
+        return enc;
+    }
+
+    private static HttpRequest tokenRequest(ConfigSpec conf, String ua, String form) {
+        // the authorization code can only be redeemed once, so the token request is never hedged
+        return HttpRequest.newBuilder(URI.create("https://" + MUA2FA.MUA_HOST + "/api/union/oauth2/token"))
+                .header(HttpHeaderNames.CONTENT_TYPE.toString(), APPLICATION_X_WWW_FORM_URLENCODED.toString())
+                .header(HttpHeaderNames.ACCEPT.toString(), APPLICATION_JSON.toString())
+                .header(HttpHeaderNames.USER_AGENT.toString(), ua).timeout(conf.getMUAUpstreamTimeout())
+                .POST(HttpRequest.BodyPublishers.ofString(form)).build();
+    }
+
+    private static HttpRequest userRequest(ConfigSpec conf, String ua, String token) {
+        // the user request is idempotent, so a second one is sent if the first one is slow to answer
+        return HttpRequest.newBuilder(URI.create("https://" + MUA2FA.MUA_HOST + "/api/union/oauth2/user"))
+                .header(HttpHeaderNames.ACCEPT.toString(), APPLICATION_JSON.toString())
+                .header(HttpHeaderNames.AUTHORIZATION.toString(), token)
+                .header(HttpHeaderNames.USER_AGENT.toString(), ua).timeout(conf.getMUAUpstreamTimeout())
+                .GET().build();
+    }
+
+    private static <T> T hedge(Callable<T> task, Duration delay, ExecutorService executor) throws Exception {
+        var service = new ExecutorCompletionService<T>(executor);
+        var futures = new ArrayList<Future<T>>(2);
+        try {
+            futures.add(service.submit(task));
+            // the second request only starts if the first one has not answered, even with an error, in time
+            var done = service.poll(delay.toNanos(), TimeUnit.NANOSECONDS);
+            if (done == null) {
+                futures.add(service.submit(task));
+                done = service.take();
+            }
+            return done.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        } finally {
+            futures.forEach(f -> f.cancel(true));
+        }
+    }
+
+    public static URI auth(URI externalUri) {
+        var relative = FilenameUtils.getName(externalUri.getPath());
+        return externalUri.resolve(StringUtils.defaultIfEmpty(relative, ".") + "/redirect");
+    }
+
+    public static URI record(URI externalUri) {
+        var relative = FilenameUtils.getName(externalUri.getPath());
+        return externalUri.resolve(StringUtils.defaultIfEmpty(relative, ".") + "/record");
     }
 
-    public static URI record(ConfigSpec conf) {
-        var relative = FilenameUtils.getName(conf.getServerExternalUri().getPath());
-        return conf.getServerExternalUri().resolve(StringUtils.defaultIfEmpty(relative, ".") + "/record");
+    public static URI renew(URI externalUri) {
+        var relative = FilenameUtils.getName(externalUri.getPath());
+        return externalUri.resolve(StringUtils.defaultIfEmpty(relative, ".") + "/renew");
+    }
+
+    public static Mono<MUARecord> renew(URI renewUri, String ua, MUARecord record) {
+        var client = HttpClient.create().headers(headers -> {
+            headers.add(HttpHeaderNames.CONTENT_TYPE, APPLICATION_JSON);
+            headers.add(HttpHeaderNames.ACCEPT, APPLICATION_JSON);
+            headers.add(HttpHeaderNames.USER_AGENT, ua);
+        });
+        var body = Mono.fromCallable(() -> encode(ByteBufAllocator.DEFAULT, record));
+        return client.post().uri(renewUri.toString()).send(body).responseSingle((res, mono) -> {
+            return json(res, mono, MUARecord.JSON_STREAM_CODEC);
+        });
     }
 
     public static Mono<MUARecord> poll(URI recordUri, String ua, Duration interval) {
@@ -122,119 +283,230 @@ public final class OAuthHttp implements Closeable {
             headers.add(HttpHeaderNames.USER_AGENT, ua);
         });
         var single = client.get().uri(recordUri.toString()).responseSingle((res, mono) -> {
-            var json = mono.asString(StandardCharsets.UTF_8).map(GsonHelper::parse);
-            var result = json.map(o -> RECORD_CODEC.decode(JsonOps.INSTANCE, o));
-            return result.map(DataResult::getOrThrow).map(Pair::getFirst);
+            return mono.map(MUARecord.JSON_STREAM_CODEC::decode);
         });
         return Mono.zip(Mono.delay(interval), single, (a, b) -> b).retry();
     }
 
+    private static String clientHost(HttpServerRequest req, String trustedForwardedHeader) {
+        var forwarded = trustedForwardedHeader.isEmpty() ? null : req.requestHeaders().get(trustedForwardedHeader);
+        if (forwarded != null) {
+            // the last entry is the one appended by the trusted proxy, the ones before are chosen by the client
+            return StringUtils.strip(StringUtils.substringAfterLast("," + forwarded, ","));
+        }
+        var address = req.remoteAddress();
+        return address != null ? address.getHostString() : "";
+    }
+
+    private static HttpServer protocol(HttpServer server, ConfigSpec conf) {
+        return switch (conf.getServerProtocol()) {
+            case HTTP1 -> server.protocol(HttpProtocol.HTTP11);
+            case H2C -> server.protocol(HttpProtocol.HTTP11, HttpProtocol.H2C);
+            case H2 -> {
+                var cert = conf.getServerTlsCertificate().toFile();
+                var key = conf.getServerTlsPrivateKey().toFile();
+                var spec = Http2SslContextSpec.forServer(cert, key);
+                yield server.protocol(HttpProtocol.HTTP11, HttpProtocol.H2).secure(ssl -> ssl.sslContext(spec));
+            }
+        };
+    }
+
+    private Reply exchange(Map<String, List<String>> params, ConfigSpec conf, String ua, CircuitBreaker upstream,
+                           RecordBroker broker, java.net.http.HttpClient client, ExecutorService executor) {
+        var now = Instant.now();
+        var stateEither = this.state(params, now);
+        var state = stateEither.left().orElse(null);
+        if (state == null) {
+            var e = stateEither.right().orElseThrow();
+            MUA2FA.LOGGER.warn(MARKER, "Error thrown on processing (state: ???): {}", e.getMessage(), e);
+            return new Reply(400, String.format(HTML, "#97242c", "Bad Request"));
+        }
+        var name = state.name();
+        try {
+            this.verifyBlocking(state, conf.getTokenKeyRing(), now);
+            MUA2FA.LOGGER.debug(MARKER, "Requesting the authorization token for player {} ...", name);
+            var tokenReq = tokenRequest(conf, ua, tokenForm(conf, code(params)).toUri().getQuery());
+            var token = this.audit.around(new LoginEvent.UpstreamToken(), state, () -> upstream.call(() -> {
+                return json(client, tokenReq, buf -> JsonStreamCodec.read(buf, OAuthHttp::token));
+            }));
+            MUA2FA.LOGGER.debug(MARKER, "Requesting the user information for player {} ...", name);
+            var userReq = userRequest(conf, ua, token);
+            var hedgeDelay = conf.getMUAUpstreamHedgeDelay();
+            Callable<MUARecord.User> single = () -> json(client, userReq, MUARecord.User.JSON_STREAM_CODEC);
+            var user = this.audit.around(new LoginEvent.UpstreamUser(), state, () -> upstream.call(() -> {
+                return hedgeDelay.isPositive() ? hedge(single, hedgeDelay, executor) : single.call();
+            }));
+            MUA2FA.LOGGER.debug(MARKER, "Finished the oauth process of player {}, replying ...", name);
+            broker.publish(state.digest(), user);
+            return new Reply(200, String.format(HTML, "#066805", state.completeHint()));
+        } catch (Exception e) {
+            MUA2FA.LOGGER.debug(MARKER, "Error thrown of the oauth process for player {}, replying ...", name);
+            MUA2FA.LOGGER.warn(MARKER, "Error thrown on processing (state: {}): {}", state, e.getMessage(), e);
+            return new Reply(400, String.format(HTML, "#97242c", state.cancelHint()));
+        }
+    }
+
     public void start(boolean epoll, ConfigSpec conf, String ua) {
         var addr = conf.getServerInternalAddress();
-        var runOn = epoll ? SERVER_EPOLL_EVENT_GROUP.get() : SERVER_EVENT_GROUP.get();
-        var server = HttpServer.create().runOn(runOn).host(addr.getHost()).port(addr.getPort()).route(routes -> {
+        // isolated from the event loops of the minecraft server so that oauth traffic never delays game packets
+        var loops = LoopResources.create(LOOPS_PREFIX, 1, conf.getServerEventLoopThreads(), true);
+        var broker = RecordBroker.create(conf, loops, epoll);
+        var upstream = new CircuitBreaker(MUA2FA.MUA_HOST, conf);
+        // only used in the virtual thread mode, where each exchange runs as blocking code on its own thread
+        var handlers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(LOOPS_PREFIX + "-v", 0).factory());
+        var blockingClient = java.net.http.HttpClient.newBuilder()
+                .connectTimeout(conf.getMUAUpstreamTimeout()).executor(handlers).build();
+        var base = HttpServer.create().runOn(loops, epoll).host(addr.getHost()).port(addr.getPort());
+        var server = protocol(base, conf).route(routes -> {
             routes.get("/record", (req, res) -> {
                 var dec = new QueryStringDecoder(req.uri());
-                var stateEither = state(dec.parameters());
-                var users = stateEither.swap().<Flux<String>>map(Flux::error, state -> {
-                    var now = OffsetDateTime.now();
-                    var key = conf.getTokenSignKey();
-                    var verified = state.verify(key.getFirst()).test(now.toInstant());
-                    if (!verified) {
-                        return Flux.error(new IllegalArgumentException("invalid signature for state: " + state));
-                    }
-                    var expire = now.plus(conf.getTokenValidityPeriod());
+                var now = OffsetDateTime.now();
+                var stateEither = this.state(dec.parameters(), now.toInstant());
+                var users = stateEither.swap().<Flux<MUARecord>>map(Flux::error, state -> {
+                    var derived = conf.getDerived();
+                    var key = derived.signKey().getSecond();
+                    var verified = this.verify(state, derived.keyRing(), now.toInstant());
+                    var expire = now.plus(conf.getTokenValidityPeriod()).toInstant();
                     var profile = new GameProfile(state.id(), state.name());
-                    return this.records.asFlux().take(POLL_INTERVAL).flatMap(user -> Mono.fromCallable(() -> {
-                        var record = user.sign(profile, expire.toInstant(), key);
-                        var result = RECORD_CODEC.encodeStart(JsonOps.INSTANCE, record);
-                        return GsonHelper.toStableString(result.getOrThrow());
-                    }));
+                    var revocations = conf.getRevocations();
+                    var subscribed = broker.subscribe(state.digest()).take(POLL_INTERVAL);
+                    var records = subscribed.filter(u -> !revocations.isRevoked(u.sub())).flatMap(user -> {
+                        var signed = Mono.fromFuture(() -> user.signAsync(profile, expire, derived.keyRing(), key));
+                        return this.audit.around(LoginEvent.RecordSign::new, Optional.of(state), signed);
+                    });
+                    return verified.flatMapMany(v -> records);
                 });
                 var name = stateEither.map(OAuthState::name, e -> "???");
                 return users.next().switchIfEmpty(Mono.defer(() -> {
                     var header = res.header(HttpHeaderNames.CONTENT_TYPE, APPLICATION_JSON);
-                    MUA2FA.LOGGER.info(MARKER, "No suitable record found for player {}, replying ...", name);
+                    MUA2FA.LOGGER.debug(MARKER, "No suitable record found for player {}, replying ...", name);
                     return header.status(404).sendString(Mono.just("{\"error\":\"not found\"}")).then();
-                }).then(Mono.empty())).flatMap(s -> {
+                }).then(Mono.empty())).flatMap(record -> {
+                    var header = res.header(HttpHeaderNames.CONTENT_TYPE, APPLICATION_JSON);
+                    MUA2FA.LOGGER.debug(MARKER, "Giving the signed record for player {} ...", name);
+                    return header.send(Mono.fromCallable(() -> encode(res.alloc(), record))).then();
+                }).onErrorResume(e -> {
+                    var header = res.header(HttpHeaderNames.CONTENT_TYPE, APPLICATION_JSON);
+                    MUA2FA.LOGGER.debug(MARKER, "Error thrown when signing a record for player {}, replying ...", name);
+                    MUA2FA.LOGGER.debug(MARKER, "Error thrown on processing: {}", e.getMessage(), e);
+                    return header.status(400).sendString(Mono.just("{\"error\":\"bad request\"}")).then();
+                });
+            });
+            routes.post("/renew", (req, res) -> {
+                var now = OffsetDateTime.now();
+                var host = clientHost(req, conf.getServerTrustedForwardedHeader());
+                // renewals are anonymous, so each address may only ask for a few of them in a window
+                var count = this.renewals.asMap().computeIfAbsent(host, k -> new AtomicInteger()).incrementAndGet();
+                if (count > MAX_RENEWALS_PER_ADDRESS) {
+                    var header = res.header(HttpHeaderNames.CONTENT_TYPE, APPLICATION_JSON);
+                    MUA2FA.LOGGER.debug(MARKER, "Too many renewals from {}, replying ...", host);
+                    return header.status(429).sendString(Mono.just("{\"error\":\"too many requests\"}")).then();
+                }
+                var length = req.requestHeaders().getInt(HttpHeaderNames.CONTENT_LENGTH, -1);
+                // only records which are still valid on this server are signed again, so no oauth is involved
+                var received = length > 0 && length <= MAX_RENEW_CONTENT_LENGTH ?
+                        req.receive().aggregate().map(MUARecord.JSON_STREAM_CODEC::decode) :
+                        Mono.<MUARecord>error(() -> new IllegalArgumentException("invalid length: " + length));
+                return received.flatMap(record -> {
+                    Preconditions.checkArgument(!conf.getRevocations().isRevoked(record), "revoked record");
+                    var derived = conf.getDerived();
+                    var key = derived.signKey().getSecond();
+                    var profile = record.getProfile();
+                    var expire = now.plus(conf.getTokenValidityPeriod()).toInstant();
+                    // partner signatures are only trusted within their own validity, so they are never renewed here
+                    var keys = derived.ownKeyRing();
+                    // records without any signature of this ring can never be verified, so no crypto work is queued
+                    var signatures = record.getSignatures().stream();
+                    var known = signatures.anyMatch(s -> keys.get(s.getKeyId(), s.getKeyBytes()) != null);
+                    Preconditions.checkArgument(known, "unknown signer: %s", profile.getId());
+                    var verified = Mono.fromFuture(() -> record.verifyAsync(profile, keys, now.toInstant()));
+                    return verified.flatMap(v -> {
+                        Preconditions.checkArgument(v, "invalid record: %s", profile.getId());
+                        var user = record.getUser();
+                        var signed = Mono.fromFuture(() -> user.signAsync(profile, expire, keys, key));
+                        return this.audit.around(LoginEvent.RecordSign::new, Optional.empty(), signed);
+                    });
+                }).flatMap(record -> {
                     var header = res.header(HttpHeaderNames.CONTENT_TYPE, APPLICATION_JSON);
-                    MUA2FA.LOGGER.info(MARKER, "Giving the signed record for player {} ...", name);
-                    return header.sendString(Mono.just(s)).then();
+                    var name = record.getProfile().getName();
+                    MUA2FA.LOGGER.debug(MARKER, "Giving the renewed record for player {} ...", name);
+                    return header.send(Mono.fromCallable(() -> encode(res.alloc(), record))).then();
                 }).onErrorResume(e -> {
                     var header = res.header(HttpHeaderNames.CONTENT_TYPE, APPLICATION_JSON);
-                    MUA2FA.LOGGER.info(MARKER, "Error thrown when signing a record for player {}, replying ...", name);
+                    MUA2FA.LOGGER.debug(MARKER, "Error thrown when renewing a record, replying ...");
                     MUA2FA.LOGGER.debug(MARKER, "Error thrown on processing: {}", e.getMessage(), e);
                     return header.status(400).sendString(Mono.just("{\"error\":\"bad request\"}")).then();
                 });
             });
             routes.get("/redirect", (req, res) -> {
                 var dec = new QueryStringDecoder(req.uri());
-                var stateEither = state(dec.parameters());
+                var stateEither = this.state(dec.parameters(), Instant.now());
                 var enc = new QueryStringEncoder("/api/union/oauth2/authorize");
                 enc.addParam("response_type", "code");
                 enc.addParam("client_id", conf.getMUAUnionAuthClientId());
-                enc.addParam("redirect_uri", conf.getServerExternalUri().toString());
+                enc.addParam("redirect_uri", conf.getDerived().externalUriString());
                 stateEither.ifLeft(state -> enc.addParam("state", state.toString()));
+                stateEither.ifLeft(state -> this.audit.mark(new LoginEvent.Redirect(), state));
                 var name = stateEither.map(OAuthState::name, e -> "???");
-                MUA2FA.LOGGER.info(MARKER, "Redirecting player {} to mua union auth page ...", name);
+                MUA2FA.LOGGER.debug(MARKER, "Redirecting player {} to mua union auth page ...", name);
                 return res.sendRedirect("https://" + MUA2FA.MUA_HOST + enc);
             });
             routes.get("/", (req, res) -> {
                 var dec = new QueryStringDecoder(req.uri());
-                var stateEither = state(dec.parameters());
-                var codeEither = code(dec.parameters());
-                var enc = new QueryStringEncoder("/");
-                enc.addParam("grant_type", "authorization_code");
-                codeEither.ifLeft(code -> enc.addParam("code", code));
-                enc.addParam("client_id", conf.getMUAUnionAuthClientId());
-                enc.addParam("client_secret", conf.getMUAUnionAuthClientSecret());
-                enc.addParam("redirect_uri", conf.getServerExternalUri().toString());
+                if (conf.getServerHandlerMode() == OAuthHandlerMode.VIRTUAL_THREAD) {
+                    var params = dec.parameters();
+                    var reply = Mono.fromFuture(() -> CompletableFuture.supplyAsync(() -> {
+                        return this.exchange(params, conf, ua, upstream, broker, blockingClient, handlers);
+                    }, handlers));
+                    return reply.flatMap(r -> {
+                        var header = res.header(HttpHeaderNames.CONTENT_TYPE, "text/html;charset=utf-8");
+                        return header.status(r.status()).sendString(Mono.just(r.body())).then();
+                    });
+                }
+                var now = Instant.now();
+                var stateEither = this.state(dec.parameters(), now);
+                var form = tokenForm(conf, code(dec.parameters())).toUri().getQuery();
                 var name = stateEither.map(OAuthState::name, e -> "???");
-                var tokenRes = stateEither.swap().<Mono<JsonObject>>map(Mono::error, state -> {
-                    var now = OffsetDateTime.now();
-                    var key = conf.getTokenSignKey();
-                    var verified = state.verify(key.getFirst()).test(now.toInstant());
-                    if (!verified) {
-                        return Mono.error(new IllegalArgumentException("invalid signature for state: " + state));
-                    }
-                    MUA2FA.LOGGER.info(MARKER, "Requesting the authorization token for player {} ...", name);
-                    var tokenClient = HttpClient.create().runOn(runOn).headers(headers -> {
-                        headers.add(HttpHeaderNames.CONTENT_TYPE, APPLICATION_X_WWW_FORM_URLENCODED);
-                        headers.add(HttpHeaderNames.ACCEPT, APPLICATION_JSON);
-                        headers.add(HttpHeaderNames.USER_AGENT, ua);
+                var tokenStr = stateEither.swap().<Mono<String>>map(Mono::error, state -> {
+                    return this.verify(state, conf.getTokenKeyRing(), now).flatMap(v -> {
+                        MUA2FA.LOGGER.debug(MARKER, "Requesting the authorization token for player {} ...", name);
+                        var tokenReq = tokenRequest(conf, ua, form);
+                        var tokenClient = HttpClient.create().runOn(loops, epoll).headers(headers -> {
+                            tokenReq.headers().map().forEach(headers::add);
+                        });
+                        var tokenBody = ByteBufFlux.fromString(Mono.just(form));
+                        var tokenUri = tokenReq.uri().toString();
+                        var token = tokenClient.post().uri(tokenUri).send(tokenBody).responseSingle((r, body) -> {
+                            return json(r, body, buf -> JsonStreamCodec.read(buf, OAuthHttp::token));
+                        }).timeout(conf.getMUAUpstreamTimeout());
+                        var protectedToken = upstream.protect(token);
+                        return this.audit.around(LoginEvent.UpstreamToken::new, Optional.of(state), protectedToken);
                     });
-                    var tokenUri = "https://" + MUA2FA.MUA_HOST + "/api/union/oauth2/token";
-                    var tokenBody = ByteBufFlux.fromString(Mono.fromCallable(() -> enc.toUri().getQuery()));
-                    return tokenClient.post().uri(tokenUri).send(tokenBody).responseSingle(OAuthHttp::json);
                 });
-                var tokenStr = tokenRes.flatMap(json -> Mono.fromCallable(() -> {
-                    var token = json.get("access_token").getAsString();
-                    var tokenType = json.get("token_type").getAsString();
-                    Preconditions.checkArgument("bearer".equalsIgnoreCase(tokenType));
-                    return tokenType + " " + token;
-                }));
-                var userRes = tokenStr.flatMap(str -> {
-                    MUA2FA.LOGGER.info(MARKER, "Requesting the user information for player {} ...", name);
-                    var userClient = HttpClient.create().runOn(runOn).headers(headers -> {
-                        headers.add(HttpHeaderNames.ACCEPT, APPLICATION_JSON);
-                        headers.add(HttpHeaderNames.AUTHORIZATION, str);
-                        headers.add(HttpHeaderNames.USER_AGENT, ua);
+                var userObj = tokenStr.flatMap(str -> {
+                    MUA2FA.LOGGER.debug(MARKER, "Requesting the user information for player {} ...", name);
+                    var userReq = userRequest(conf, ua, str);
+                    var userClient = HttpClient.create().runOn(loops, epoll).headers(headers -> {
+                        userReq.headers().map().forEach(headers::add);
                     });
-                    var userUri = "https://" + MUA2FA.MUA_HOST + "/api/union/oauth2/user";
-                    return userClient.get().uri(userUri).responseSingle(OAuthHttp::json);
+                    var user = userClient.get().uri(userReq.uri().toString()).responseSingle((r, body) -> {
+                        return json(r, body, MUARecord.User.JSON_STREAM_CODEC);
+                    }).timeout(conf.getMUAUpstreamTimeout());
+                    var hedgeDelay = conf.getMUAUpstreamHedgeDelay();
+                    // the second request only starts if the first one has not answered, even with an error, in time
+                    var hedged = hedgeDelay.isPositive() ?
+                            Mono.firstWithSignal(user, Mono.delay(hedgeDelay).then(user)) : user;
+                    var protectedUser = upstream.protect(hedged);
+                    return this.audit.around(LoginEvent.UpstreamUser::new, stateEither.left(), protectedUser);
                 });
-                var userObj = userRes.flatMap(json -> Mono.fromCallable(() -> {
-                    var result = MUARecord.User.CODEC.decode(JsonOps.INSTANCE, json);
-                    return result.getOrThrow().getFirst();
-                }));
                 return Mono.zip(userObj, stateEither.map(Mono::just, Mono::error), Pair::of).flatMap(pair -> {
-                    MUA2FA.LOGGER.info(MARKER, "Finished the oauth process of player {}, replying ...", name);
+                    MUA2FA.LOGGER.debug(MARKER, "Finished the oauth process of player {}, replying ...", name);
                     var hint = pair.getSecond().completeHint();
                     var header = res.header(HttpHeaderNames.CONTENT_TYPE, "text/html;charset=utf-8");
-                    this.records.emitNext(pair.getFirst(), Sinks.EmitFailureHandler.FAIL_FAST);
+                    broker.publish(pair.getSecond().digest(), pair.getFirst());
                     return header.sendString(Mono.just(String.format(HTML, "#066805", hint))).then();
                 }).onErrorResume(e -> {
-                    MUA2FA.LOGGER.info(MARKER, "Error thrown of the oauth process for player {}, replying ...", name);
+                    MUA2FA.LOGGER.debug(MARKER, "Error thrown of the oauth process for player {}, replying ...", name);
                     return stateEither.map(s -> {
                         var hint = s.cancelHint();
                         var header = res.header(HttpHeaderNames.CONTENT_TYPE, "text/html;charset=utf-8");
@@ -250,15 +522,43 @@ public final class OAuthHttp implements Closeable {
             });
         });
         MUA2FA.LOGGER.info(MARKER, STARTING);
+        this.loops.set(loops);
+        this.broker.set(broker);
+        this.handlers.set(handlers);
+        this.blockingClient.set(blockingClient);
         this.server.set(server.doOnBound(s -> MUA2FA.LOGGER.info(MARKER, STARTED, s.address())).bindNow());
     }
 
     @Override
     public void close() {
+        var broker = this.broker.getAndSet(null);
+        if (broker != null) {
+            broker.close();
+        }
+        var blockingClient = this.blockingClient.getAndSet(null);
+        if (blockingClient != null) {
+            blockingClient.shutdownNow();
+        }
+        var handlers = this.handlers.getAndSet(null);
+        if (handlers != null) {
+            handlers.shutdownNow();
+        }
+        var loops = this.loops.getAndSet(null);
         var server = this.server.getAndSet(null);
         if (server != null) {
             MUA2FA.LOGGER.info(MARKER, STOPPING, server.address());
-            server.onDispose().doAfterTerminate(() -> MUA2FA.LOGGER.info(MARKER, STOPPED)).subscribe();
+            var disposed = server.onDispose().then(loops != null ? loops.disposeLater() : Mono.empty());
+            disposed.doAfterTerminate(() -> MUA2FA.LOGGER.info(MARKER, STOPPED)).subscribe();
+            server.dispose();
+        } else if (loops != null) {
+            loops.disposeLater().subscribe();
         }
     }
+
+    @FieldsAreNonnullByDefault
+    @MethodsReturnNonnullByDefault
+    @ParametersAreNonnullByDefault
+    private record Reply(int status, String body) {
+        // nothing here
+    }
 }
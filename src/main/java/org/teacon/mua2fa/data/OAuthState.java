@@ -1,6 +1,8 @@
 package org.teacon.mua2fa.data;
 
+import com.google.common.base.CharMatcher;
 import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import com.mojang.authlib.GameProfile;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufUtil;
@@ -13,46 +15,78 @@ import net.minecraft.network.codec.StreamCodec;
 
 import javax.annotation.ParametersAreNonnullByDefault;
 import java.security.interfaces.EdECPrivateKey;
-import java.security.interfaces.EdECPublicKey;
 import java.time.Instant;
 import java.util.Base64;
 import java.util.UUID;
-import java.util.function.Predicate;
+import java.util.concurrent.CompletableFuture;
 
 @FieldsAreNonnullByDefault
 @MethodsReturnNonnullByDefault
 @ParametersAreNonnullByDefault
-public record OAuthState(UUID id, String name, Instant expire,
+public record OAuthState(UUID id, String name, Instant expire, int keyId,
                          HashCode signature, String cancelHint, String completeHint) {
     private static final Base64.Decoder DECODER;
     private static final Base64.Encoder ENCODER;
+    private static final CharMatcher BASE64_URL;
+    private static final int MAX_STRING_LENGTH = 4096;
 
     public static final StreamCodec<ByteBuf, OAuthState> STREAM_CODEC;
 
     static {
         DECODER = Base64.getUrlDecoder();
         ENCODER = Base64.getUrlEncoder().withoutPadding();
-        STREAM_CODEC = StreamCodec.composite(
-                UUIDUtil.STREAM_CODEC, OAuthState::id,
-                ByteBufCodecs.stringUtf8(16), OAuthState::name,
-                ByteBufCodecs.VAR_LONG.map(Instant::ofEpochSecond, Instant::getEpochSecond), OAuthState::expire,
-                HashBase85.ofStreamCodec(512), OAuthState::signature,
-                ByteBufCodecs.stringUtf8(16383), OAuthState::cancelHint,
-                ByteBufCodecs.stringUtf8(16383), OAuthState::completeHint, OAuthState::new);
+        BASE64_URL = CharMatcher.inRange('A', 'Z').or(CharMatcher.inRange('a', 'z'))
+                .or(CharMatcher.inRange('0', '9')).or(CharMatcher.anyOf("-_")).precomputed();
+        var nameStreamCodec = ByteBufCodecs.stringUtf8(16);
+        var hintStreamCodec = ByteBufCodecs.stringUtf8(16383);
+        var signatureStreamCodec = HashBase85.ofStreamCodec(512);
+        var expireStreamCodec = ByteBufCodecs.VAR_LONG.map(Instant::ofEpochSecond, Instant::getEpochSecond);
+        STREAM_CODEC = StreamCodec.of((buf, state) -> {
+            UUIDUtil.STREAM_CODEC.encode(buf, state.id());
+            nameStreamCodec.encode(buf, state.name());
+            expireStreamCodec.encode(buf, state.expire());
+            ByteBufCodecs.INT.encode(buf, state.keyId());
+            signatureStreamCodec.encode(buf, state.signature());
+            hintStreamCodec.encode(buf, state.cancelHint());
+            hintStreamCodec.encode(buf, state.completeHint());
+        }, buf -> new OAuthState(
+                UUIDUtil.STREAM_CODEC.decode(buf), nameStreamCodec.decode(buf),
+                expireStreamCodec.decode(buf), ByteBufCodecs.INT.decode(buf), signatureStreamCodec.decode(buf),
+                hintStreamCodec.decode(buf), hintStreamCodec.decode(buf)));
     }
 
-    public static OAuthState sign(UUID id, String name, Instant expire, EdECPrivateKey key) {
+    public static OAuthState sign(UUID id, String name, Instant expire, int keyId, EdECPrivateKey key) {
         var signature = Ed25519.sign(key, expire, new GameProfile(id, name), ByteBufCodecs.GAME_PROFILE);
-        return new OAuthState(id, name, expire, signature, "", "");
+        return new OAuthState(id, name, expire, keyId, signature, "", "");
     }
 
-    public Predicate<Instant> verify(EdECPublicKey key) {
+    public static CompletableFuture<OAuthState> signAsync(UUID id, String name,
+                                                          Instant expire, int keyId, EdECPrivateKey key) {
+        return Ed25519.supplyAsync(() -> sign(id, name, expire, keyId, key));
+    }
+
+    public CompletableFuture<Boolean> verifyAsync(KeyRing keys, Instant now) {
+        return Ed25519.supplyAsync(() -> this.verify(keys).test(now));
+    }
+
+    public Verification verify(KeyRing keys) {
+        var key = keys.get(this.keyId);
+        if (key == null) {
+            return Verification.invalid();
+        }
         var profile = new GameProfile(this.id, this.name);
         return Ed25519.verify(key, this.expire, this.signature, profile, ByteBufCodecs.GAME_PROFILE);
     }
 
+    public HashCode digest() {
+        // hints are not signed, so states which only differ in hints share the same digest
+        var buf = Unpooled.buffer(108);
+        STREAM_CODEC.encode(buf, this.with("", ""));
+        return Hashing.sha256().hashBytes(ByteBufUtil.getBytes(buf));
+    }
+
     public OAuthState with(String cancelHint, String completeHint) {
-        return new OAuthState(this.id, this.name, this.expire, this.signature, cancelHint, completeHint);
+        return new OAuthState(this.id, this.name, this.expire, this.keyId, this.signature, cancelHint, completeHint);
     }
 
     @Override
@@ -60,13 +94,19 @@ public record OAuthState(UUID id, String name, Instant expire,
         // id: 16
         // name: 17
         // expire: 5
+        // key id: 4
         // signature: 64
         // hints: 200 + 200
-        var buf = Unpooled.buffer(504);
+        var buf = Unpooled.buffer(508);
         STREAM_CODEC.encode(buf, this);
         return ENCODER.encodeToString(ByteBufUtil.getBytes(buf));
     }
 
+    public static boolean isWellFormed(String input) {
+        // a base64 string of an id, a name, the expiry, the key id and the signature, plus hints of limited length
+        return input.length() > 100 && input.length() <= MAX_STRING_LENGTH && BASE64_URL.matchesAllOf(input);
+    }
+
     public static OAuthState fromString(String input) {
         var buf = Unpooled.wrappedBuffer(DECODER.decode(input));
         return STREAM_CODEC.decode(buf);
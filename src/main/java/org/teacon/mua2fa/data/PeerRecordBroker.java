@@ -0,0 +1,220 @@
+package org.teacon.mua2fa.data;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.net.HostAndPort;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.DecoderException;
+import io.netty.handler.codec.LineBasedFrameDecoder;
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.network.FriendlyByteBuf;
+import net.minecraft.network.codec.ByteBufCodecs;
+import net.minecraft.network.codec.StreamCodec;
+import net.minecraft.network.codec.StreamEncoder;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+import org.teacon.mua2fa.MUA2FA;
+import org.teacon.mua2fa.server.ConfigSpec;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.resources.LoopResources;
+import reactor.netty.tcp.TcpClient;
+import reactor.netty.tcp.TcpServer;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public final class PeerRecordBroker implements RecordBroker {
+    private static final int MAX_LINE_LENGTH = 8192;
+    private static final int MAX_HELD_STATES = 4096;
+    private static final int MAX_SEEN_NONCES = 65536;
+    private static final String DOMAIN = "mua2fa:cluster";
+    private static final Marker MARKER = MarkerManager.getMarker("Cluster");
+
+    private static final String OFFER = "?";
+    private static final String WANTED = "+";
+    private static final String UNWANTED = "-";
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+
+    private static final StreamEncoder<FriendlyByteBuf, Payload> SIGNED = (buf, payload) -> {
+        // prefixed so that the signature can never be mistaken for a state or a record signature
+        buf.writeUtf(DOMAIN);
+        Payload.STREAM_CODEC.encode(buf, payload);
+    };
+
+    private final ConfigSpec conf;
+    private final TcpClient client;
+    private final List<HostAndPort> peers;
+    private final LocalRecordBroker local;
+    private final Cache<HashCode, Boolean> held;
+    private final Cache<HashCode, Boolean> seen;
+    private final @Nullable DisposableServer server;
+
+    PeerRecordBroker(LoopResources loops, boolean preferNative,
+                     HostAndPort listen, List<HostAndPort> peers, ConfigSpec conf) {
+        this.conf = conf;
+        this.peers = List.copyOf(peers);
+        this.local = new LocalRecordBroker();
+        // states polled on this node recently, so a poll which just ended still receives its record
+        this.held = CacheBuilder.newBuilder().maximumSize(MAX_HELD_STATES)
+                .expireAfterWrite(OAuthHttp.POLL_INTERVAL.plus(OAuthHttp.NETWORK_TOLERANCE)).build();
+        // an announcement expires within the tolerance, so its nonce only needs to be kept for as long
+        this.seen = CacheBuilder.newBuilder().maximumSize(MAX_SEEN_NONCES)
+                .expireAfterWrite(OAuthHttp.NETWORK_TOLERANCE).build();
+        var client = TcpClient.create().runOn(loops, preferNative);
+        this.client = client.doOnConnected(c -> c.addHandlerLast(new LineBasedFrameDecoder(MAX_LINE_LENGTH)));
+        if (listen.getPort() > 0) {
+            var tcp = TcpServer.create().runOn(loops, preferNative).host(listen.getHost()).port(listen.getPort());
+            var framed = tcp.doOnConnection(c -> c.addHandlerLast(new LineBasedFrameDecoder(MAX_LINE_LENGTH)));
+            this.server = framed.handle((in, out) -> {
+                var lines = in.receive().asString(StandardCharsets.US_ASCII);
+                return out.sendString(lines.concatMap(this::receive), StandardCharsets.US_ASCII);
+            }).bindNow();
+            MUA2FA.LOGGER.info(MARKER, "Listening for records from peers at {}.", this.server.address());
+        } else {
+            this.server = null;
+        }
+    }
+
+    private Mono<String> encode(HashCode state, MUARecord.User user) {
+        var nonce = new byte[16];
+        RANDOM.nextBytes(nonce);
+        var payload = new Payload(state, HashCode.fromBytes(nonce), user);
+        var expire = Instant.now().plus(OAuthHttp.NETWORK_TOLERANCE);
+        var keyId = this.conf.getTokenKeyRing().getActiveId();
+        var key = this.conf.getTokenSignKey().getSecond();
+        return Mono.fromFuture(() -> Ed25519.signAsync(key, expire, payload, SIGNED)).map(signature -> {
+            var buf = Unpooled.buffer();
+            Announcement.STREAM_CODEC.encode(buf, new Announcement(payload, expire, keyId, signature));
+            return ENCODER.encodeToString(ByteBufUtil.getBytes(buf)) + "\n";
+        });
+    }
+
+    private Mono<String> receive(String line) {
+        var stripped = line.strip();
+        try {
+            if (stripped.startsWith(OFFER)) {
+                // only the node where the player polls holds the state, and only that node asks for the record
+                var state = HashCode.fromBytes(DECODER.decode(stripped.substring(OFFER.length())));
+                var wanted = this.held.getIfPresent(state) != null;
+                return Mono.just((wanted ? WANTED : UNWANTED) + "\n");
+            }
+            var buf = Unpooled.wrappedBuffer(DECODER.decode(stripped));
+            var announcement = Announcement.STREAM_CODEC.decode(buf);
+            var payload = announcement.payload();
+            var key = this.conf.getTokenKeyRing().get(announcement.keyId());
+            if (key == null) {
+                MUA2FA.LOGGER.warn(MARKER, "Dropped a record from a peer because of an unknown key.");
+                return Mono.empty();
+            }
+            var expire = announcement.expire();
+            var signature = announcement.signature();
+            var verified = Ed25519.verifyAsync(key, expire, signature, payload, SIGNED, Instant.now());
+            verified.whenComplete((result, e) -> {
+                var user = payload.user();
+                if (Boolean.TRUE.equals(result)) {
+                    if (this.seen.asMap().putIfAbsent(payload.nonce(), Boolean.TRUE) != null) {
+                        MUA2FA.LOGGER.warn(MARKER, "Dropped a replayed record of user {} from a peer.", user.sub());
+                    } else if (this.held.getIfPresent(payload.state()) == null) {
+                        MUA2FA.LOGGER.debug(MARKER, "Dropped the record of user {} not polled here.", user.sub());
+                    } else {
+                        MUA2FA.LOGGER.info(MARKER, "Received the record of user {} from a peer.", user.sub());
+                        this.local.publish(payload.state(), user);
+                    }
+                } else if (e instanceof RejectedExecutionException ||
+                        e instanceof CompletionException && e.getCause() instanceof RejectedExecutionException) {
+                    MUA2FA.LOGGER.warn(MARKER, "Dropped a record from a peer because of overloaded crypto workers.");
+                } else {
+                    MUA2FA.LOGGER.warn(MARKER, "Dropped a record from a peer because of an invalid signature.");
+                }
+            });
+        } catch (IllegalArgumentException | IndexOutOfBoundsException | DecoderException e) {
+            MUA2FA.LOGGER.warn(MARKER, "Dropped a malformed record from a peer: {}", e.getMessage());
+        }
+        return Mono.empty();
+    }
+
+    @Override
+    public void publish(HashCode state, MUARecord.User user) {
+        this.local.publish(state, user);
+        if (!this.peers.isEmpty()) {
+            var offer = OFFER + ENCODER.encodeToString(state.asBytes()) + "\n";
+            var line = this.encode(state, user).cache();
+            for (var peer : this.peers) {
+                var client = this.client.host(peer.getHost()).port(peer.getPort());
+                // the record is only sent if the peer holds the state, and the connection is closed right after
+                var conn = client.handle((in, out) -> {
+                    var answer = in.receive().asString(StandardCharsets.US_ASCII).next().map(String::strip);
+                    var offered = out.sendString(Mono.just(offer), StandardCharsets.US_ASCII).then();
+                    return offered.then(answer).filter(WANTED::equals).flatMap(wanted -> {
+                        MUA2FA.LOGGER.debug(MARKER, "Sending the record of {} to {} ...", user.sub(), peer);
+                        return out.sendString(line, StandardCharsets.US_ASCII).then();
+                    });
+                }).connect();
+                conn.subscribe(c -> MUA2FA.LOGGER.debug(MARKER, "Offering a record of {} to {} ...", user.sub(), peer),
+                        e -> MUA2FA.LOGGER.warn(MARKER, "Failed to send a record to {}: {}", peer, e.getMessage()));
+            }
+        }
+    }
+
+    @Override
+    public Flux<MUARecord.User> subscribe(HashCode state) {
+        this.held.put(state, Boolean.TRUE);
+        return this.local.subscribe(state);
+    }
+
+    @Override
+    public void close() {
+        if (this.server != null) {
+            this.server.disposeNow();
+        }
+        this.local.close();
+    }
+
+    @FieldsAreNonnullByDefault
+    @MethodsReturnNonnullByDefault
+    @ParametersAreNonnullByDefault
+    private record Payload(HashCode state, HashCode nonce, MUARecord.User user) {
+        public static final StreamCodec<ByteBuf, Payload> STREAM_CODEC;
+
+        static {
+            STREAM_CODEC = StreamCodec.composite(
+                    HashBase85.ofStreamCodec(256), Payload::state,
+                    HashBase85.ofStreamCodec(128), Payload::nonce,
+                    MUARecord.User.STREAM_CODEC, Payload::user, Payload::new);
+        }
+    }
+
+    @FieldsAreNonnullByDefault
+    @MethodsReturnNonnullByDefault
+    @ParametersAreNonnullByDefault
+    private record Announcement(Payload payload, Instant expire, int keyId, HashCode signature) {
+        public static final StreamCodec<ByteBuf, Announcement> STREAM_CODEC;
+
+        static {
+            STREAM_CODEC = StreamCodec.composite(
+                    Payload.STREAM_CODEC, Announcement::payload,
+                    ByteBufCodecs.VAR_LONG.map(Instant::ofEpochSecond, Instant::getEpochSecond), Announcement::expire,
+                    ByteBufCodecs.INT, Announcement::keyId,
+                    HashBase85.ofStreamCodec(512), Announcement::signature, Announcement::new);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package org.teacon.mua2fa.data;
+
+import com.google.common.hash.HashCode;
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import org.teacon.mua2fa.server.ConfigSpec;
+import reactor.core.publisher.Flux;
+import reactor.netty.resources.LoopResources;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.Closeable;
+
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public sealed interface RecordBroker extends Closeable permits LocalRecordBroker, PeerRecordBroker {
+    static RecordBroker create(ConfigSpec conf, LoopResources loops, boolean preferNative) {
+        var listen = conf.getClusterListenAddress();
+        var peers = conf.getClusterPeers();
+        if (listen.getPort() > 0 || !peers.isEmpty()) {
+            return new PeerRecordBroker(loops, preferNative, listen, peers, conf);
+        }
+        return new LocalRecordBroker();
+    }
+
+    void publish(HashCode state, MUARecord.User user);
+
+    Flux<MUARecord.User> subscribe(HashCode state);
+
+    @Override
+    void close();
+}
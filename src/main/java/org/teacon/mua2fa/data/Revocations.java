@@ -0,0 +1,62 @@
+package org.teacon.mua2fa.data;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnel;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.HashCode;
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Set;
+
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public final class Revocations {
+    public static final Revocations EMPTY = new Revocations(Set.of(), Set.of());
+
+    private static final double FALSE_POSITIVE_RATE = 0.001;
+    private static final Funnel<HashCode> HASH_FUNNEL = (from, into) -> into.putBytes(from.asBytes());
+    private static final Funnel<CharSequence> STRING_FUNNEL = Funnels.stringFunnel(StandardCharsets.UTF_8);
+
+    private final Set<HashCode> signatures;
+    private final Set<String> subs;
+    private final BloomFilter<HashCode> signatureFilter;
+    private final BloomFilter<CharSequence> subFilter;
+
+    public Revocations(Collection<HashCode> signatures, Collection<String> subs) {
+        this.signatures = ImmutableSet.copyOf(signatures);
+        this.subs = ImmutableSet.copyOf(subs);
+        // the filters are small enough to stay in cache, and the exact sets are only hit on a (rare) match
+        this.signatureFilter = BloomFilter.create(HASH_FUNNEL, Math.max(1, signatures.size()), FALSE_POSITIVE_RATE);
+        this.signatures.forEach(this.signatureFilter::put);
+        this.subFilter = BloomFilter.create(STRING_FUNNEL, Math.max(1, subs.size()), FALSE_POSITIVE_RATE);
+        this.subs.forEach(this.subFilter::put);
+    }
+
+    public Set<HashCode> getSignatures() {
+        return this.signatures;
+    }
+
+    public Set<String> getSubs() {
+        return this.subs;
+    }
+
+    public boolean isRevoked(String sub) {
+        return !this.subs.isEmpty() && this.subFilter.mightContain(sub) && this.subs.contains(sub);
+    }
+
+    public boolean isRevoked(MUARecord.SignEntry entry) {
+        var signature = entry.getSignature();
+        return !this.signatures.isEmpty() && this.signatureFilter.mightContain(signature)
+                && this.signatures.contains(signature);
+    }
+
+    public boolean isRevoked(MUARecord record) {
+        return this.isRevoked(record.getUser().sub()) || record.getSignatures().stream().anyMatch(this::isRevoked);
+    }
+}
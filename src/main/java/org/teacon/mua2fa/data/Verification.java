@@ -0,0 +1,71 @@
+package org.teacon.mua2fa.data;
+
+import com.google.common.base.Suppliers;
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.time.Instant;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public sealed interface Verification extends Predicate<Instant>
+        permits Verification.Invalid, Verification.Signed, Verification.AnyOf {
+    static Verification invalid() {
+        return Invalid.INSTANCE;
+    }
+
+    static Verification signed(Instant expire, Supplier<Boolean> check) {
+        return new Signed(expire, Suppliers.memoize(check::get));
+    }
+
+    static Verification anyOf(List<? extends Verification> verifications) {
+        return switch (verifications.size()) {
+            case 0 -> Invalid.INSTANCE;
+            case 1 -> verifications.getFirst();
+            default -> new AnyOf(List.copyOf(verifications));
+        };
+    }
+
+    @FieldsAreNonnullByDefault
+    @MethodsReturnNonnullByDefault
+    @ParametersAreNonnullByDefault
+    enum Invalid implements Verification {
+        INSTANCE;
+
+        @Override
+        public boolean test(Instant now) {
+            return false;
+        }
+    }
+
+    @FieldsAreNonnullByDefault
+    @MethodsReturnNonnullByDefault
+    @ParametersAreNonnullByDefault
+    record Signed(Instant expire, Supplier<Boolean> check) implements Verification {
+        @Override
+        public boolean test(Instant now) {
+            // the time bound is checked first, and the memoized signature check runs at most once
+            return !this.expire.isBefore(now) && this.check.get();
+        }
+    }
+
+    @FieldsAreNonnullByDefault
+    @MethodsReturnNonnullByDefault
+    @ParametersAreNonnullByDefault
+    record AnyOf(List<Verification> verifications) implements Verification {
+        @Override
+        public boolean test(Instant now) {
+            for (var verification : this.verifications) {
+                if (verification.test(now)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
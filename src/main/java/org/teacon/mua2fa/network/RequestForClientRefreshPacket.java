@@ -1,12 +1,16 @@
 package org.teacon.mua2fa.network;
 
+import com.google.common.hash.HashCode;
 import io.netty.buffer.ByteBuf;
 import net.minecraft.FieldsAreNonnullByDefault;
 import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.network.codec.ByteBufCodecs;
 import net.minecraft.network.codec.StreamCodec;
 import net.minecraft.network.protocol.common.custom.CustomPacketPayload;
 import net.minecraft.resources.ResourceLocation;
 import org.teacon.mua2fa.MUA2FA;
+import org.teacon.mua2fa.data.HashBase85;
+import org.teacon.mua2fa.data.KeyRing;
 import org.teacon.mua2fa.data.MUARecord;
 
 import javax.annotation.ParametersAreNonnullByDefault;
@@ -14,14 +18,19 @@ import javax.annotation.ParametersAreNonnullByDefault;
 @FieldsAreNonnullByDefault
 @MethodsReturnNonnullByDefault
 @ParametersAreNonnullByDefault
-public record RequestForClientRefreshPacket(MUARecord record) implements CustomPacketPayload {
+public record RequestForClientRefreshPacket(MUARecord record, KeyRing keys,
+                                            String renewBaseUri, HashCode sessionToken) implements CustomPacketPayload {
     public static final Type<RequestForClientRefreshPacket> TYPE;
     public static final StreamCodec<ByteBuf, RequestForClientRefreshPacket> STREAM_CODEC;
 
     static {
         TYPE = new Type<>(ResourceLocation.fromNamespaceAndPath(MUA2FA.ID, "request_for_client_refresh"));
-        STREAM_CODEC = MUARecord.STREAM_CODEC
-                .map(RequestForClientRefreshPacket::new, RequestForClientRefreshPacket::record);
+        STREAM_CODEC = StreamCodec.composite(
+                MUARecord.STREAM_CODEC, RequestForClientRefreshPacket::record,
+                KeyRing.STREAM_CODEC, RequestForClientRefreshPacket::keys,
+                ByteBufCodecs.STRING_UTF8, RequestForClientRefreshPacket::renewBaseUri,
+                HashBase85.ofStreamCodec(256), RequestForClientRefreshPacket::sessionToken,
+                RequestForClientRefreshPacket::new);
     }
 
     @Override
@@ -0,0 +1,29 @@
+package org.teacon.mua2fa.network;
+
+import io.netty.buffer.ByteBuf;
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.network.codec.StreamCodec;
+import net.minecraft.network.protocol.common.custom.CustomPacketPayload;
+import net.minecraft.resources.ResourceLocation;
+import org.teacon.mua2fa.MUA2FA;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public record RequestForClientSessionPacket() implements CustomPacketPayload {
+    public static final Type<RequestForClientSessionPacket> TYPE;
+    public static final StreamCodec<ByteBuf, RequestForClientSessionPacket> STREAM_CODEC;
+
+    static {
+        TYPE = new Type<>(ResourceLocation.fromNamespaceAndPath(MUA2FA.ID, "request_for_client_session"));
+        STREAM_CODEC = StreamCodec.unit(new RequestForClientSessionPacket());
+    }
+
+    @Override
+    public Type<? extends CustomPacketPayload> type() {
+        return TYPE;
+    }
+}
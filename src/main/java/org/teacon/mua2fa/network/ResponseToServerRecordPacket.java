@@ -1,27 +1,50 @@
 package org.teacon.mua2fa.network;
 
+import com.mojang.authlib.GameProfile;
 import io.netty.buffer.ByteBuf;
 import net.minecraft.FieldsAreNonnullByDefault;
 import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.network.codec.ByteBufCodecs;
 import net.minecraft.network.codec.StreamCodec;
 import net.minecraft.network.protocol.common.custom.CustomPacketPayload;
 import net.minecraft.resources.ResourceLocation;
 import org.teacon.mua2fa.MUA2FA;
+import org.teacon.mua2fa.data.KeyRing;
 import org.teacon.mua2fa.data.MUARecord;
 
 import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
 
 @FieldsAreNonnullByDefault
 @MethodsReturnNonnullByDefault
 @ParametersAreNonnullByDefault
-public record ResponseToServerRecordPacket(MUARecord record) implements CustomPacketPayload {
+public record ResponseToServerRecordPacket(GameProfile profile, MUARecord.User user,
+                                           MUARecord.SignEntry signature) implements CustomPacketPayload {
     public static final Type<ResponseToServerRecordPacket> TYPE;
     public static final StreamCodec<ByteBuf, ResponseToServerRecordPacket> STREAM_CODEC;
 
     static {
         TYPE = new Type<>(ResourceLocation.fromNamespaceAndPath(MUA2FA.ID, "response_to_server_record"));
-        STREAM_CODEC = MUARecord.STREAM_CODEC
-                .map(ResponseToServerRecordPacket::new, ResponseToServerRecordPacket::record);
+        STREAM_CODEC = StreamCodec.composite(
+                ByteBufCodecs.GAME_PROFILE, ResponseToServerRecordPacket::profile,
+                MUARecord.User.STREAM_CODEC, ResponseToServerRecordPacket::user,
+                MUARecord.SignEntry.STREAM_CODEC, ResponseToServerRecordPacket::signature,
+                ResponseToServerRecordPacket::new);
+    }
+
+    public static Optional<ResponseToServerRecordPacket> of(MUARecord record, KeyRing keys) {
+        // only the signature for the keys of the requesting server is sent, preferring the active key
+        var order = Comparator.<MUARecord.SignEntry, Boolean>comparing(s -> s.getKeyId() != keys.getActiveId())
+                .thenComparing(MUARecord.SignEntry::getExpireAt, Comparator.reverseOrder());
+        var signatures = record.getSignatures().stream().sorted(order);
+        var targeted = signatures.filter(s -> keys.get(s.getKeyId(), s.getKeyBytes()) != null).findFirst();
+        return targeted.map(s -> new ResponseToServerRecordPacket(record.getProfile(), record.getUser(), s));
+    }
+
+    public MUARecord record() {
+        return new MUARecord(this.profile, this.user, List.of(this.signature));
     }
 
     @Override
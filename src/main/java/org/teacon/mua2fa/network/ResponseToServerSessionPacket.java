@@ -0,0 +1,34 @@
+package org.teacon.mua2fa.network;
+
+import com.google.common.hash.HashCode;
+import io.netty.buffer.ByteBuf;
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.network.codec.ByteBufCodecs;
+import net.minecraft.network.codec.StreamCodec;
+import net.minecraft.network.protocol.common.custom.CustomPacketPayload;
+import net.minecraft.resources.ResourceLocation;
+import org.teacon.mua2fa.MUA2FA;
+import org.teacon.mua2fa.data.HashBase85;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.Optional;
+
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public record ResponseToServerSessionPacket(Optional<HashCode> token) implements CustomPacketPayload {
+    public static final Type<ResponseToServerSessionPacket> TYPE;
+    public static final StreamCodec<ByteBuf, ResponseToServerSessionPacket> STREAM_CODEC;
+
+    static {
+        TYPE = new Type<>(ResourceLocation.fromNamespaceAndPath(MUA2FA.ID, "response_to_server_session"));
+        STREAM_CODEC = ByteBufCodecs.optional(HashBase85.ofStreamCodec(256))
+                .map(ResponseToServerSessionPacket::new, ResponseToServerSessionPacket::token);
+    }
+
+    @Override
+    public Type<? extends CustomPacketPayload> type() {
+        return TYPE;
+    }
+}
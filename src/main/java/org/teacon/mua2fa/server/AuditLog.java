@@ -0,0 +1,271 @@
+package org.teacon.mua2fa.server;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.gson.stream.JsonWriter;
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+import org.teacon.mua2fa.MUA2FA;
+import org.teacon.mua2fa.data.LoginEvent;
+import org.teacon.mua2fa.data.OAuthState;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public final class AuditLog implements Closeable {
+    public static final AuditLog DISCARD = new AuditLog(null);
+
+    private static final Marker MARKER = MarkerManager.getMarker("Audit");
+    private static final int QUEUE_CAPACITY = 65536;
+    private static final int BATCH_SIZE = 512;
+    private static final long MAX_FILE_SIZE = 16L << 20;
+    private static final int MAX_ROTATED_FILES = 5;
+
+    private final Map<UUID, Attempt> attempts = new ConcurrentHashMap<>();
+    private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong dropped = new AtomicLong();
+    private final @Nullable Thread thread;
+    private final @Nullable Path file;
+
+    private @Nullable OutputStream output;
+    private long size;
+    private volatile boolean closed;
+
+    private AuditLog(@Nullable Path file) {
+        this.file = file;
+        this.thread = file == null ? null : Thread.ofPlatform().name("mua2fa-audit").daemon().unstarted(this::run);
+    }
+
+    public static AuditLog open(Path file) {
+        var result = new AuditLog(file);
+        // noinspection DataFlowIssue
+        result.thread.start();
+        return result;
+    }
+
+    public void begin(UUID playerId, String name) {
+        if (this.thread != null) {
+            this.attempts.put(playerId, new Attempt(name, Instant.now(), System.nanoTime(), List.of()));
+        }
+    }
+
+    public void stage(UUID playerId, String stage, long startNanos, String result) {
+        if (this.thread != null) {
+            var endNanos = System.nanoTime();
+            this.attempts.computeIfPresent(playerId, (k, v) -> v.with(new Stage(stage, startNanos, endNanos, result)));
+        }
+    }
+
+    public void commit(LoginEvent event, UUID playerId,
+                       @Nullable HashCode stateSignature, long startNanos, String result) {
+        event.commitFor(playerId, stateSignature);
+        this.stage(playerId, event.stage(), startNanos, result);
+    }
+
+    public void mark(LoginEvent event, OAuthState state) {
+        this.commit(event, state.id(), state.signature(), System.nanoTime(), "ok");
+    }
+
+    public <T> Mono<T> around(Supplier<? extends LoginEvent> factory, Optional<OAuthState> state, Mono<T> mono) {
+        return Mono.defer(() -> {
+            var event = factory.get();
+            event.begin();
+            var start = System.nanoTime();
+            return mono.doFinally(signal -> state.ifPresentOrElse(s -> {
+                this.commit(event, s.id(), s.signature(), start, switch (signal) {
+                    case ON_COMPLETE -> "ok";
+                    case ON_ERROR -> "error";
+                    default -> "cancelled";
+                });
+            }, event::commit));
+        });
+    }
+
+    public <T> T around(LoginEvent event, OAuthState state, Callable<T> task) throws Exception {
+        event.begin();
+        var start = System.nanoTime();
+        var result = "error";
+        try {
+            var value = task.call();
+            result = "ok";
+            return value;
+        } finally {
+            this.commit(event, state.id(), state.signature(), start, result);
+        }
+    }
+
+    public void finish(UUID playerId, String outcome) {
+        var attempt = this.attempts.remove(playerId);
+        if (attempt != null) {
+            var line = attempt.toJson(playerId, outcome, System.nanoTime());
+            if (!this.queue.offer(line)) {
+                // the audit log must never slow down logins, so records are dropped when the writer falls behind
+                this.dropped.incrementAndGet();
+            }
+        }
+    }
+
+    public void clear() {
+        this.attempts.clear();
+    }
+
+    private void run() {
+        var batch = new ArrayList<String>(BATCH_SIZE);
+        while (!this.closed || !this.queue.isEmpty()) {
+            try {
+                var first = this.queue.poll(1L, TimeUnit.SECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    this.queue.drainTo(batch, BATCH_SIZE - 1);
+                    this.write(batch);
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                this.closed = true;
+            }
+        }
+        this.closeOutput();
+    }
+
+    private void write(List<String> batch) {
+        try {
+            var dropped = this.dropped.getAndSet(0L);
+            if (dropped > 0L) {
+                MUA2FA.LOGGER.warn(MARKER, "Dropped {} audit records since the writer fell behind", dropped);
+            }
+            var output = this.output;
+            if (output == null) {
+                var file = this.file;
+                // noinspection DataFlowIssue
+                Files.createDirectories(file.getParent());
+                this.size = Files.exists(file) ? Files.size(file) : 0L;
+                this.output = output = new BufferedOutputStream(Files.newOutputStream(file,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE));
+            }
+            for (var line : batch) {
+                var bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+                output.write(bytes);
+                this.size += bytes.length;
+            }
+            output.flush();
+            if (this.size >= MAX_FILE_SIZE) {
+                this.rotate();
+            }
+        } catch (IOException e) {
+            MUA2FA.LOGGER.warn(MARKER, "Failed to write {} audit records", batch.size(), e);
+            this.closeOutput();
+        }
+    }
+
+    private void rotate() throws IOException {
+        this.closeOutput();
+        var file = this.file;
+        // noinspection DataFlowIssue
+        var name = file.getFileName().toString();
+        Files.deleteIfExists(file.resolveSibling(name + "." + MAX_ROTATED_FILES));
+        for (var i = MAX_ROTATED_FILES - 1; i > 0; --i) {
+            var source = file.resolveSibling(name + "." + i);
+            if (Files.exists(source)) {
+                Files.move(source, file.resolveSibling(name + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file, file.resolveSibling(name + ".1"), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void closeOutput() {
+        var output = this.output;
+        if (output != null) {
+            this.output = null;
+            try {
+                output.close();
+            } catch (IOException e) {
+                MUA2FA.LOGGER.warn(MARKER, "Failed to close the audit log", e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        var thread = this.thread;
+        if (thread != null) {
+            this.closed = true;
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(5L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @FieldsAreNonnullByDefault
+    @MethodsReturnNonnullByDefault
+    @ParametersAreNonnullByDefault
+    private record Stage(String name, long startNanos, long endNanos, String result) {
+        // nothing here
+    }
+
+    @FieldsAreNonnullByDefault
+    @MethodsReturnNonnullByDefault
+    @ParametersAreNonnullByDefault
+    private record Attempt(String name, Instant start, long startNanos, List<Stage> stages) {
+        private Attempt with(Stage stage) {
+            var stages = ImmutableList.<Stage>builderWithExpectedSize(this.stages.size() + 1);
+            return new Attempt(this.name, this.start, this.startNanos, stages.addAll(this.stages).add(stage).build());
+        }
+
+        private String toJson(UUID playerId, String outcome, long endNanos) {
+            try (var str = new StringWriter(); var writer = new JsonWriter(str)) {
+                writer.beginObject();
+                writer.name("player").value(playerId.toString());
+                writer.name("name").value(this.name);
+                writer.name("start").value(this.start.toString());
+                writer.name("took_ms").value(TimeUnit.NANOSECONDS.toMillis(endNanos - this.startNanos));
+                writer.name("outcome").value(outcome);
+                writer.name("stages").beginArray();
+                for (var stage : this.stages) {
+                    writer.beginObject();
+                    writer.name("stage").value(stage.name());
+                    writer.name("at_ms").value(TimeUnit.NANOSECONDS.toMillis(stage.startNanos() - this.startNanos));
+                    writer.name("took_ms").value(TimeUnit.NANOSECONDS.toMillis(stage.endNanos() - stage.startNanos()));
+                    writer.name("result").value(stage.result());
+                    writer.endObject();
+                }
+                writer.endArray();
+                writer.endObject();
+                writer.flush();
+                return str.toString();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -2,33 +2,48 @@ package org.teacon.mua2fa.server;
 
 import com.electronwill.nightconfig.core.CommentedConfig;
 import com.electronwill.nightconfig.core.UnmodifiableCommentedConfig;
+import com.google.common.base.CharMatcher;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
 import com.google.common.net.HostAndPort;
 import com.mojang.datafixers.util.Pair;
+import io.netty.handler.codec.DecoderException;
 import it.unimi.dsi.fastutil.objects.Object2ObjectArrayMap;
 import net.minecraft.FieldsAreNonnullByDefault;
 import net.minecraft.MethodsReturnNonnullByDefault;
 import net.minecraft.Util;
 import net.neoforged.fml.config.IConfigSpec;
 import net.neoforged.fml.config.ModConfig;
+import net.neoforged.fml.loading.FMLPaths;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.text.StringSubstitutor;
 import org.apache.commons.text.lookup.StringLookup;
 import org.apache.commons.text.lookup.StringLookupFactory;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+import org.teacon.mua2fa.MUA2FA;
 import org.teacon.mua2fa.data.Ed25519;
 import org.teacon.mua2fa.data.HashBase85;
+import org.teacon.mua2fa.data.KeyRing;
+import org.teacon.mua2fa.data.Revocations;
 
 import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
 import java.security.interfaces.EdECPrivateKey;
 import java.security.interfaces.EdECPublicKey;
 import java.time.DateTimeException;
+import java.time.Duration;
 import java.time.Period;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -37,26 +52,65 @@ import static com.google.common.base.Preconditions.checkArgument;
 @MethodsReturnNonnullByDefault
 @ParametersAreNonnullByDefault
 public final class ConfigSpec implements IConfigSpec {
+    private static final Marker MARKER = MarkerManager.getMarker("Config");
+
     private static final String TOKEN_SECRET_SIGN_KEY = "token.secretSignKey";
+    private static final String TOKEN_VERIFY_ONLY_KEYS = "token.verifyOnlyKeys";
+    private static final String TOKEN_TRUSTED_PARTNER_KEYS = "token.trustedPartnerKeys";
     private static final String TOKEN_VALIDITY_PERIOD = "token.validityPeriod";
+    private static final String TOKEN_TRUSTED_RECONNECT_TTL = "token.trustedReconnectTtl";
+    private static final String TOKEN_RENEW_BEFORE = "token.renewBefore";
+    private static final String TOKEN_SIGN_BACKEND = "token.signBackend";
     private static final String SERVER_EXTERNAL_URI = "server.externalUri";
     private static final String SERVER_INTERNAL_ADDRESS = "server.internalAddress";
+    private static final String SERVER_PROTOCOL = "server.protocol";
+    private static final String SERVER_TLS_CERTIFICATE = "server.tlsCertificate";
+    private static final String SERVER_TLS_PRIVATE_KEY = "server.tlsPrivateKey";
+    private static final String SERVER_EVENT_LOOP_THREADS = "server.eventLoopThreads";
+    private static final String SERVER_HANDLER_MODE = "server.handlerMode";
+    private static final String SERVER_TRUSTED_FORWARDED_HEADER = "server.trustedForwardedHeader";
     private static final String MUA_REQUIRE_UNION_AUTH = "mua.requireUnionAuth";
     private static final String MUA_UNION_AUTH_CLIENT_ID = "mua.unionAuthClientId";
     private static final String MUA_UNION_AUTH_CLIENT_SECRET = "mua.unionAuthClientSecret";
+    private static final String MUA_UPSTREAM_TIMEOUT = "mua.upstreamTimeout";
+    private static final String MUA_UPSTREAM_HEDGE_DELAY = "mua.upstreamHedgeDelay";
+    private static final String MUA_UPSTREAM_FAILURE_THRESHOLD = "mua.upstreamFailureThreshold";
+    private static final String MUA_UPSTREAM_OPEN_DURATION = "mua.upstreamOpenDuration";
+    private static final String CLUSTER_LISTEN_ADDRESS = "cluster.listenAddress";
+    private static final String CLUSTER_PEERS = "cluster.peers";
+    private static final String REVOCATION_SIGNATURES = "revocation.signatures";
+    private static final String REVOCATION_SUBS = "revocation.subs";
 
     private static final StringLookup LOOKUP = StringLookupFactory.INSTANCE.environmentVariableStringLookup();
     private static final StringSubstitutor SUB = new StringSubstitutor(LOOKUP);
 
-    private final AtomicReference<Pair<EdECPublicKey, EdECPrivateKey>> tokenSecretSignKey = new AtomicReference<>();
+    private final AtomicReference<DerivedSettings> derived = new AtomicReference<>();
+
     private final AtomicReference<Period> tokenValidityPeriod = new AtomicReference<>();
+    private final AtomicReference<Duration> tokenTrustedReconnectTtl = new AtomicReference<>();
+    private final AtomicReference<Duration> tokenRenewBefore = new AtomicReference<>();
+    private final AtomicReference<Ed25519.Backend> tokenSignBackend = new AtomicReference<>();
 
-    private final AtomicReference<URI> serverExternalUri = new AtomicReference<>();
     private final AtomicReference<HostAndPort> serverInternalAddress = new AtomicReference<>();
+    private final AtomicReference<OAuthProtocol> serverProtocol = new AtomicReference<>();
+    private final AtomicReference<Path> serverTlsCertificate = new AtomicReference<>();
+    private final AtomicReference<Path> serverTlsPrivateKey = new AtomicReference<>();
+    private final AtomicInteger serverEventLoopThreads = new AtomicInteger(1);
+    private final AtomicReference<OAuthHandlerMode> serverHandlerMode = new AtomicReference<>();
+    private final AtomicReference<String> serverTrustedForwardedHeader = new AtomicReference<>("");
 
     private final AtomicBoolean muaRequireUnionAuth = new AtomicBoolean(false);
     private final AtomicReference<String> muaUnionAuthClientId = new AtomicReference<>();
     private final AtomicReference<String> muaUnionAuthClientSecret = new AtomicReference<>();
+    private final AtomicReference<Duration> muaUpstreamTimeout = new AtomicReference<>();
+    private final AtomicReference<Duration> muaUpstreamHedgeDelay = new AtomicReference<>();
+    private final AtomicInteger muaUpstreamFailureThreshold = new AtomicInteger(1);
+    private final AtomicReference<Duration> muaUpstreamOpenDuration = new AtomicReference<>();
+
+    private final AtomicReference<HostAndPort> clusterListenAddress = new AtomicReference<>();
+    private final AtomicReference<List<HostAndPort>> clusterPeers = new AtomicReference<>();
+
+    private final AtomicReference<Revocations> revocations = new AtomicReference<>(Revocations.EMPTY);
 
     @Override
     public boolean isEmpty() {
@@ -88,31 +142,121 @@ public final class ConfigSpec implements IConfigSpec {
                 loadedConfig.save();
             }
             this.tokenValidityPeriod.setOpaque(parsePositivePeriod(config.get(TOKEN_VALIDITY_PERIOD)).orElseThrow());
-            this.tokenSecretSignKey.setOpaque(parseBase85KeyPair(config.get(TOKEN_SECRET_SIGN_KEY)).orElseThrow());
-            this.serverExternalUri.setOpaque(parseUntrustedUri(config.get(SERVER_EXTERNAL_URI)).orElseThrow());
-            this.serverInternalAddress.setOpaque(parseHostAndPort(config.get(SERVER_INTERNAL_ADDRESS)).orElseThrow());
+            this.tokenTrustedReconnectTtl.setOpaque(parsePositiveDuration(config.get(TOKEN_TRUSTED_RECONNECT_TTL))
+                    .orElseThrow());
+            this.tokenRenewBefore.setOpaque(parsePositiveDuration(config.get(TOKEN_RENEW_BEFORE)).orElseThrow());
+            this.tokenSignBackend.setOpaque(parseSignBackend(config.get(TOKEN_SIGN_BACKEND)).orElseThrow());
+            var signKey = parseBase85KeyPair(config.get(TOKEN_SECRET_SIGN_KEY)).orElseThrow();
+            var verifyOnlyKeys = parseBase85PublicKeys(config.get(TOKEN_VERIFY_ONLY_KEYS)).orElseThrow();
+            var partnerKeys = parseBase85PublicKeys(config.get(TOKEN_TRUSTED_PARTNER_KEYS)).orElseThrow();
+            var externalUri = parseUntrustedUri(config.get(SERVER_EXTERNAL_URI)).orElseThrow();
+            // keys and uris are resolved once per reload, and swapped as a whole so that readers never mix them
+            this.derived.setOpaque(DerivedSettings.of(externalUri, signKey, verifyOnlyKeys, partnerKeys));
+            this.serverInternalAddress.setOpaque(parseHostAndPort(config.get(SERVER_INTERNAL_ADDRESS), 58888)
+                    .orElseThrow());
+            this.serverProtocol.setOpaque(parseProtocol(config.get(SERVER_PROTOCOL)).orElseThrow());
+            this.serverTlsCertificate.setOpaque(parseConfigPath(config.get(SERVER_TLS_CERTIFICATE)).orElseThrow());
+            this.serverTlsPrivateKey.setOpaque(parseConfigPath(config.get(SERVER_TLS_PRIVATE_KEY)).orElseThrow());
+            this.serverEventLoopThreads.setOpaque(config.get(SERVER_EVENT_LOOP_THREADS));
+            this.serverHandlerMode.setOpaque(parseHandlerMode(config.get(SERVER_HANDLER_MODE)).orElseThrow());
+            this.serverTrustedForwardedHeader.setOpaque(parseHeaderName(config.get(SERVER_TRUSTED_FORWARDED_HEADER))
+                    .orElseThrow());
             this.muaRequireUnionAuth.setOpaque(config.get(MUA_REQUIRE_UNION_AUTH));
             this.muaUnionAuthClientId.setOpaque(parseAscii(config.get(MUA_UNION_AUTH_CLIENT_ID)).orElseThrow());
             this.muaUnionAuthClientSecret.setOpaque(parseAscii(config.get(MUA_UNION_AUTH_CLIENT_SECRET)).orElseThrow());
+            this.muaUpstreamTimeout.setOpaque(parsePositiveDuration(config.get(MUA_UPSTREAM_TIMEOUT)).orElseThrow());
+            this.muaUpstreamHedgeDelay.setOpaque(parsePositiveDuration(config.get(MUA_UPSTREAM_HEDGE_DELAY))
+                    .orElseThrow());
+            this.muaUpstreamFailureThreshold.setOpaque(config.get(MUA_UPSTREAM_FAILURE_THRESHOLD));
+            this.muaUpstreamOpenDuration.setOpaque(parsePositiveDuration(config.get(MUA_UPSTREAM_OPEN_DURATION))
+                    .orElseThrow());
+            this.clusterListenAddress.setOpaque(parseHostAndPort(config.get(CLUSTER_LISTEN_ADDRESS), 58889)
+                    .orElseThrow());
+            this.clusterPeers.setOpaque(parseHostAndPorts(config.get(CLUSTER_PEERS), 58889).orElseThrow());
+            var revokedSignatures = parseBase85Signatures(config.get(REVOCATION_SIGNATURES));
+            var revokedSubs = parseAsciiList(config.get(REVOCATION_SUBS));
+            this.revocations.setOpaque(new Revocations(revokedSignatures, revokedSubs));
         }
     }
 
+    public static ConfigSpec ofDefaults() {
+        // every key falls back to its default, so a fresh sign key is generated and nothing is written to disk
+        var config = CommentedConfig.inMemory();
+        var result = new ConfigSpec();
+        result.acceptConfig(new ILoadedConfig() {
+            @Override
+            public CommentedConfig config() {
+                return config;
+            }
+
+            @Override
+            public void save() {
+                // nothing here
+            }
+        });
+        return result;
+    }
+
     public Period getTokenValidityPeriod() {
         return this.tokenValidityPeriod.getOpaque();
     }
 
+    public Duration getTokenTrustedReconnectTtl() {
+        return this.tokenTrustedReconnectTtl.getOpaque();
+    }
+
+    public Duration getTokenRenewBefore() {
+        return this.tokenRenewBefore.getOpaque();
+    }
+
+    public Ed25519.Backend getTokenSignBackend() {
+        return this.tokenSignBackend.getOpaque();
+    }
+
+    public DerivedSettings getDerived() {
+        return this.derived.getOpaque();
+    }
+
     public Pair<EdECPublicKey, EdECPrivateKey> getTokenSignKey() {
-        return this.tokenSecretSignKey.getOpaque();
+        return this.derived.getOpaque().signKey();
+    }
+
+    public KeyRing getTokenKeyRing() {
+        return this.derived.getOpaque().keyRing();
     }
 
     public URI getServerExternalUri() {
-        return this.serverExternalUri.getOpaque();
+        return this.derived.getOpaque().externalUri();
     }
 
     public HostAndPort getServerInternalAddress() {
         return this.serverInternalAddress.getOpaque();
     }
 
+    public OAuthProtocol getServerProtocol() {
+        return this.serverProtocol.getOpaque();
+    }
+
+    public Path getServerTlsCertificate() {
+        return this.serverTlsCertificate.getOpaque();
+    }
+
+    public Path getServerTlsPrivateKey() {
+        return this.serverTlsPrivateKey.getOpaque();
+    }
+
+    public int getServerEventLoopThreads() {
+        return this.serverEventLoopThreads.getOpaque();
+    }
+
+    public OAuthHandlerMode getServerHandlerMode() {
+        return this.serverHandlerMode.getOpaque();
+    }
+
+    public String getServerTrustedForwardedHeader() {
+        return this.serverTrustedForwardedHeader.getOpaque();
+    }
+
     public boolean getMUARequireUnionAuth() {
         return this.muaRequireUnionAuth.getOpaque();
     }
@@ -125,29 +269,138 @@ public final class ConfigSpec implements IConfigSpec {
         return this.muaUnionAuthClientSecret.getOpaque();
     }
 
+    public Duration getMUAUpstreamTimeout() {
+        return this.muaUpstreamTimeout.getOpaque();
+    }
+
+    public Duration getMUAUpstreamHedgeDelay() {
+        return this.muaUpstreamHedgeDelay.getOpaque();
+    }
+
+    public int getMUAUpstreamFailureThreshold() {
+        return this.muaUpstreamFailureThreshold.getOpaque();
+    }
+
+    public Duration getMUAUpstreamOpenDuration() {
+        return this.muaUpstreamOpenDuration.getOpaque();
+    }
+
+    public HostAndPort getClusterListenAddress() {
+        return this.clusterListenAddress.getOpaque();
+    }
+
+    public List<HostAndPort> getClusterPeers() {
+        return this.clusterPeers.getOpaque();
+    }
+
+    public Revocations getRevocations() {
+        return this.revocations.getOpaque();
+    }
+
     private static Map<String, ?> collectCorrections(UnmodifiableCommentedConfig config) {
-        var result = new Object2ObjectArrayMap<String, Object>(7);
-        if (!(config.get(TOKEN_VALIDITY_PERIOD) instanceof String s1) || parsePositivePeriod(s1).isEmpty()) {
+        var result = new Object2ObjectArrayMap<String, Object>(25);
+        if (!(config.get(TOKEN_VALIDITY_PERIOD) instanceof String tokenValidityPeriod) ||
+                parsePositivePeriod(tokenValidityPeriod).isEmpty()) {
             result.put(TOKEN_VALIDITY_PERIOD, "P1Y");
         }
-        if (!(config.get(TOKEN_SECRET_SIGN_KEY) instanceof String s2) || parseBase85KeyPair(s2).isEmpty()) {
+        if (!(config.get(TOKEN_TRUSTED_RECONNECT_TTL) instanceof String tokenTrustedReconnectTtl) ||
+                parsePositiveDuration(tokenTrustedReconnectTtl).isEmpty()) {
+            result.put(TOKEN_TRUSTED_RECONNECT_TTL, "PT1M");
+        }
+        if (!(config.get(TOKEN_RENEW_BEFORE) instanceof String tokenRenewBefore) ||
+                parsePositiveDuration(tokenRenewBefore).isEmpty()) {
+            result.put(TOKEN_RENEW_BEFORE, "P30D");
+        }
+        if (!(config.get(TOKEN_SIGN_BACKEND) instanceof String tokenSignBackend) ||
+                parseSignBackend(tokenSignBackend).isEmpty()) {
+            result.put(TOKEN_SIGN_BACKEND, Ed25519.Backend.JDK.getSerializedName());
+        }
+        if (!(config.get(TOKEN_SECRET_SIGN_KEY) instanceof String tokenSecretSignKey) ||
+                parseBase85KeyPair(tokenSecretSignKey).isEmpty()) {
             result.put(TOKEN_SECRET_SIGN_KEY, HashBase85.encode(Ed25519.serialize(Ed25519.generate())));
         }
-        if (!(config.get(SERVER_EXTERNAL_URI) instanceof String s3) || parseUntrustedUri(s3).isEmpty()) {
+        if (!(config.get(TOKEN_VERIFY_ONLY_KEYS) instanceof List<?> tokenVerifyOnlyKeys) ||
+                parseBase85PublicKeys(tokenVerifyOnlyKeys).isEmpty()) {
+            result.put(TOKEN_VERIFY_ONLY_KEYS, List.of());
+        }
+        if (!(config.get(TOKEN_TRUSTED_PARTNER_KEYS) instanceof List<?> tokenTrustedPartnerKeys) ||
+                parseBase85PublicKeys(tokenTrustedPartnerKeys).isEmpty()) {
+            result.put(TOKEN_TRUSTED_PARTNER_KEYS, List.of());
+        }
+        if (!(config.get(SERVER_EXTERNAL_URI) instanceof String serverExternalUri) ||
+                parseUntrustedUri(serverExternalUri).isEmpty()) {
             result.put(SERVER_EXTERNAL_URI, "http://localhost:58888/");
         }
-        if (!(config.get(SERVER_INTERNAL_ADDRESS) instanceof String s4) || parseHostAndPort(s4).isEmpty()) {
+        if (!(config.get(SERVER_INTERNAL_ADDRESS) instanceof String serverInternalAddress) ||
+                parseHostAndPort(serverInternalAddress, 58888).isEmpty()) {
             result.put(SERVER_INTERNAL_ADDRESS, "0.0.0.0:58888");
         }
+        if (!(config.get(SERVER_PROTOCOL) instanceof String serverProtocol) ||
+                parseProtocol(serverProtocol).isEmpty()) {
+            result.put(SERVER_PROTOCOL, OAuthProtocol.HTTP1.getSerializedName());
+        }
+        if (!(config.get(SERVER_TLS_CERTIFICATE) instanceof String serverTlsCertificate) ||
+                parseConfigPath(serverTlsCertificate).isEmpty()) {
+            result.put(SERVER_TLS_CERTIFICATE, "mua2fa/cert.pem");
+        }
+        if (!(config.get(SERVER_TLS_PRIVATE_KEY) instanceof String serverTlsPrivateKey) ||
+                parseConfigPath(serverTlsPrivateKey).isEmpty()) {
+            result.put(SERVER_TLS_PRIVATE_KEY, "mua2fa/key.pem");
+        }
+        if (!(config.get(SERVER_EVENT_LOOP_THREADS) instanceof Integer serverEventLoopThreads) ||
+                serverEventLoopThreads <= 0) {
+            result.put(SERVER_EVENT_LOOP_THREADS, 2);
+        }
+        if (!(config.get(SERVER_HANDLER_MODE) instanceof String serverHandlerMode) ||
+                parseHandlerMode(serverHandlerMode).isEmpty()) {
+            result.put(SERVER_HANDLER_MODE, OAuthHandlerMode.REACTIVE.getSerializedName());
+        }
+        if (!(config.get(SERVER_TRUSTED_FORWARDED_HEADER) instanceof String serverTrustedForwardedHeader) ||
+                parseHeaderName(serverTrustedForwardedHeader).isEmpty()) {
+            result.put(SERVER_TRUSTED_FORWARDED_HEADER, "");
+        }
         if (!(config.get(MUA_REQUIRE_UNION_AUTH) instanceof Boolean)) {
             result.put(MUA_REQUIRE_UNION_AUTH, Boolean.FALSE);
         }
-        if (!(config.get(MUA_UNION_AUTH_CLIENT_ID) instanceof String s6) || parseAscii(s6).isEmpty()) {
+        if (!(config.get(MUA_UNION_AUTH_CLIENT_ID) instanceof String muaUnionAuthClientId) ||
+                parseAscii(muaUnionAuthClientId).isEmpty()) {
             result.put(MUA_UNION_AUTH_CLIENT_ID, "${MUA_UNION_AUTH_CLIENT_ID}");
         }
-        if (!(config.get(MUA_UNION_AUTH_CLIENT_SECRET) instanceof String s7) || parseAscii(s7).isEmpty()) {
+        if (!(config.get(MUA_UNION_AUTH_CLIENT_SECRET) instanceof String muaUnionAuthClientSecret) ||
+                parseAscii(muaUnionAuthClientSecret).isEmpty()) {
             result.put(MUA_UNION_AUTH_CLIENT_SECRET, "${MUA_UNION_AUTH_CLIENT_SECRET}");
         }
+        if (!(config.get(MUA_UPSTREAM_TIMEOUT) instanceof String muaUpstreamTimeout) ||
+                parsePositiveDuration(muaUpstreamTimeout).filter(Duration::isPositive).isEmpty()) {
+            result.put(MUA_UPSTREAM_TIMEOUT, "PT10S");
+        }
+        if (!(config.get(MUA_UPSTREAM_HEDGE_DELAY) instanceof String muaUpstreamHedgeDelay) ||
+                parsePositiveDuration(muaUpstreamHedgeDelay).isEmpty()) {
+            result.put(MUA_UPSTREAM_HEDGE_DELAY, "PT2S");
+        }
+        if (!(config.get(MUA_UPSTREAM_FAILURE_THRESHOLD) instanceof Integer muaUpstreamFailureThreshold) ||
+                muaUpstreamFailureThreshold <= 0) {
+            result.put(MUA_UPSTREAM_FAILURE_THRESHOLD, 5);
+        }
+        if (!(config.get(MUA_UPSTREAM_OPEN_DURATION) instanceof String muaUpstreamOpenDuration) ||
+                parsePositiveDuration(muaUpstreamOpenDuration).isEmpty()) {
+            result.put(MUA_UPSTREAM_OPEN_DURATION, "PT30S");
+        }
+        if (!(config.get(CLUSTER_LISTEN_ADDRESS) instanceof String clusterListenAddress) ||
+                parseHostAndPort(clusterListenAddress, 58889).isEmpty()) {
+            result.put(CLUSTER_LISTEN_ADDRESS, "0.0.0.0:0");
+        }
+        if (!(config.get(CLUSTER_PEERS) instanceof List<?> clusterPeers) ||
+                parseHostAndPorts(clusterPeers, 58889).isEmpty()) {
+            result.put(CLUSTER_PEERS, List.of());
+        }
+        // invalid revocations are skipped when loaded instead of corrected, so that no revocation is ever erased
+        if (!(config.get(REVOCATION_SIGNATURES) instanceof List<?>)) {
+            result.put(REVOCATION_SIGNATURES, List.of());
+        }
+        if (!(config.get(REVOCATION_SUBS) instanceof List<?>)) {
+            result.put(REVOCATION_SUBS, List.of());
+        }
         return result;
     }
 
@@ -161,6 +414,16 @@ public final class ConfigSpec implements IConfigSpec {
         }
     }
 
+    private static Optional<Duration> parsePositiveDuration(String input) {
+        try {
+            input = SUB.replace(input);
+            var duration = Duration.parse(input);
+            return duration.isNegative() ? Optional.empty() : Optional.of(duration);
+        } catch (DateTimeException e) {
+            return Optional.empty();
+        }
+    }
+
     private static Optional<Pair<EdECPublicKey, EdECPrivateKey>> parseBase85KeyPair(String input) {
         try {
             input = SUB.replace(input);
@@ -171,6 +434,37 @@ public final class ConfigSpec implements IConfigSpec {
         }
     }
 
+    private static Optional<List<EdECPublicKey>> parseBase85PublicKeys(List<?> input) {
+        try {
+            checkArgument(input.size() < KeyRing.MAX_SIZE);
+            var builder = ImmutableList.<EdECPublicKey>builderWithExpectedSize(input.size());
+            for (var element : input) {
+                checkArgument(element instanceof String);
+                var s = SUB.replace((String) element);
+                checkArgument(s.length() == 40);
+                builder.add(Ed25519.single(HashBase85.decode(s)));
+            }
+            return Optional.of(builder.build());
+        } catch (IllegalArgumentException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static List<HashCode> parseBase85Signatures(List<?> input) {
+        var builder = ImmutableList.<HashCode>builderWithExpectedSize(input.size());
+        for (var element : input) {
+            try {
+                checkArgument(element instanceof String);
+                var s = SUB.replace((String) element);
+                checkArgument(s.length() == 80);
+                builder.add(HashBase85.decode(s));
+            } catch (IllegalArgumentException | DecoderException e) {
+                MUA2FA.LOGGER.warn(MARKER, "Skipped an invalid entry of {}: {}", REVOCATION_SIGNATURES, element);
+            }
+        }
+        return builder.build();
+    }
+
     private static Optional<URI> parseUntrustedUri(String input) {
         try {
             return Optional.of(Util.parseAndValidateUntrustedUri(SUB.replace(input)));
@@ -179,15 +473,65 @@ public final class ConfigSpec implements IConfigSpec {
         }
     }
 
-    private static Optional<HostAndPort> parseHostAndPort(String input) {
+    private static Optional<HostAndPort> parseHostAndPort(String input, int defaultPort) {
         try {
-            return Optional.of(HostAndPort.fromString(SUB.replace(input)).withDefaultPort(58888));
+            return Optional.of(HostAndPort.fromString(SUB.replace(input)).withDefaultPort(defaultPort));
         } catch (IllegalArgumentException e) {
             return Optional.empty();
         }
     }
 
+    private static Optional<List<HostAndPort>> parseHostAndPorts(List<?> input, int defaultPort) {
+        var builder = ImmutableList.<HostAndPort>builderWithExpectedSize(input.size());
+        for (var element : input) {
+            var parsed = element instanceof String s ? parseHostAndPort(s, defaultPort) : Optional.<HostAndPort>empty();
+            if (parsed.isEmpty()) {
+                return Optional.empty();
+            }
+            builder.add(parsed.get());
+        }
+        return Optional.of(builder.build());
+    }
+
+    private static Optional<OAuthProtocol> parseProtocol(String input) {
+        return Optional.ofNullable(OAuthProtocol.CODEC.byName(SUB.replace(input)));
+    }
+
+    private static Optional<Ed25519.Backend> parseSignBackend(String input) {
+        return Optional.ofNullable(Ed25519.Backend.CODEC.byName(SUB.replace(input)));
+    }
+
+    private static Optional<OAuthHandlerMode> parseHandlerMode(String input) {
+        return Optional.ofNullable(OAuthHandlerMode.CODEC.byName(SUB.replace(input)));
+    }
+
+    private static Optional<Path> parseConfigPath(String input) {
+        try {
+            return Optional.of(FMLPaths.CONFIGDIR.get().resolve(SUB.replace(input)).normalize());
+        } catch (InvalidPathException e) {
+            return Optional.empty();
+        }
+    }
+
+    private static Optional<String> parseHeaderName(String input) {
+        // empty if the oauth server is reached directly, otherwise a header which only the proxy in front can set
+        var matcher = CharMatcher.inRange('a', 'z').or(CharMatcher.inRange('A', 'Z'))
+                .or(CharMatcher.inRange('0', '9')).or(CharMatcher.is('-'));
+        return Optional.of(SUB.replace(input)).map(StringUtils::strip).filter(matcher::matchesAllOf);
+    }
+
     private static Optional<String> parseAscii(String input) {
         return Optional.of(SUB.replace(input)).map(StringUtils::strip).filter(StringUtils::isAsciiPrintable);
     }
+
+    private static List<String> parseAsciiList(List<?> input) {
+        var builder = ImmutableList.<String>builderWithExpectedSize(input.size());
+        for (var element : input) {
+            var parsed = element instanceof String s ? parseAscii(s) : Optional.<String>empty();
+            parsed.ifPresentOrElse(builder::add, () -> {
+                MUA2FA.LOGGER.warn(MARKER, "Skipped an invalid entry of {}: {}", REVOCATION_SUBS, element);
+            });
+        }
+        return builder.build();
+    }
 }
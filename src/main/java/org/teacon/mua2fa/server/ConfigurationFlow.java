@@ -0,0 +1,447 @@
+package org.teacon.mua2fa.server;
+
+import com.google.common.hash.HashCode;
+import com.mojang.authlib.GameProfile;
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.network.chat.Component;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.server.network.ConfigurationTask;
+import net.neoforged.neoforge.network.PacketDistributor;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+import org.teacon.mua2fa.MUA2FA;
+import org.teacon.mua2fa.data.Ed25519;
+import org.teacon.mua2fa.data.KeyRing;
+import org.teacon.mua2fa.data.LoginEvent;
+import org.teacon.mua2fa.data.MUAIdentity;
+import org.teacon.mua2fa.data.MUARecord;
+import org.teacon.mua2fa.data.OAuthHttp;
+import org.teacon.mua2fa.data.OAuthState;
+import org.teacon.mua2fa.network.RequestForClientRecordPacket;
+import org.teacon.mua2fa.network.RequestForClientRefreshPacket;
+import org.teacon.mua2fa.network.RequestForClientSessionPacket;
+import org.teacon.mua2fa.network.ResponseToServerCancelPacket;
+import org.teacon.mua2fa.network.ResponseToServerRecordPacket;
+import org.teacon.mua2fa.network.ResponseToServerSessionPacket;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.InstantSource;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public final class ConfigurationFlow {
+    public static final ConfigurationTask.Type CONFIGURATION;
+    private static final Marker MARKER = MarkerManager.getMarker("Server");
+    private static final int MAX_RENEWALS_PER_CHECK = 16;
+
+    static {
+        CONFIGURATION = new ConfigurationTask.Type(ResourceLocation.fromNamespaceAndPath(MUA2FA.ID, "configuration"));
+    }
+
+    private final Map<UUID, ConnectionSession> sessions = new HashMap<>();
+    private final Map<UUID, MUAIdentity> muaIdentities = new HashMap<>();
+    private final Map<UUID, TrustedSession> trustedSessions = new HashMap<>();
+    private final Map<UUID, TrustedSession> reconnecting = new HashMap<>();
+    private final Map<UUID, HashCode> sessionTokens = new HashMap<>();
+    private final Map<UUID, MUARecord> records = new HashMap<>();
+    private final Set<UUID> renewing = new HashSet<>();
+    private final PresignedTable presigned;
+    private final InstantSource clock;
+    private final ConfigSpec config;
+    private final Executor crypto;
+    private final AuditLog audit;
+
+    public ConfigurationFlow(ConfigSpec config, InstantSource clock,
+                             AuditLog audit, PresignedTable presigned, Executor crypto) {
+        this.presigned = presigned;
+        this.config = config;
+        this.crypto = crypto;
+        this.clock = clock;
+        this.audit = audit;
+    }
+
+    public MUAIdentity getIdentity(UUID profileId) {
+        return this.muaIdentities.getOrDefault(profileId, MUAIdentity.NONE);
+    }
+
+    public void begin(GameProfile profile, ConfigurationPeer peer) {
+        var now = this.clock.instant();
+        var trusted = this.trustedSessions.remove(profile.getId());
+        if (trusted != null && trusted.expire().isAfter(now)) {
+            // the client has to prove that the session was issued to it by echoing the token
+            this.reconnecting.put(profile.getId(), trusted);
+            peer.send(new RequestForClientSessionPacket());
+            return;
+        }
+        this.authenticate(profile, peer, now);
+    }
+
+    public void tick() {
+        var now = this.clock.instant();
+        this.trustedSessions.values().removeIf(trusted -> trusted.expire().isBefore(now));
+        this.reconnecting.values().removeIf(trusted -> trusted.expire().isBefore(now));
+        this.sessions.entrySet().removeIf(entry -> {
+            var session = entry.getValue();
+            // allow additional 30 seconds for network delays
+            if (session.deadline().plus(OAuthHttp.NETWORK_TOLERANCE).isBefore(now)) {
+                var profile = session.profile();
+                MUA2FA.LOGGER.debug(MARKER, "Player {} ({}) time out", profile.getName(), profile.getId());
+                this.audit.finish(profile.getId(), "timeout");
+                session.peer().disconnect(Component.translatable("disconnect.timeout"));
+                // the connection of the player can be garbage collected
+                return true;
+            }
+            return false;
+        });
+    }
+
+    public void logout(UUID profileId) {
+        // the connection of the player can be garbage collected
+        this.sessions.remove(profileId);
+        this.records.remove(profileId);
+        this.audit.finish(profileId, "disconnected");
+        var identity = this.muaIdentities.remove(profileId);
+        if (identity != null) {
+            this.trust(profileId, identity);
+        }
+        this.sessionTokens.remove(profileId);
+    }
+
+    public void clear() {
+        // all the connections can be garbage collected
+        this.sessions.clear();
+        this.muaIdentities.clear();
+        this.trustedSessions.clear();
+        this.reconnecting.clear();
+        this.sessionTokens.clear();
+        this.records.clear();
+        this.renewing.clear();
+        this.audit.clear();
+    }
+
+    public void renew(Collection<ServerPlayer> players, Executor executor) {
+        var now = this.clock.instant();
+        var renewBefore = this.config.getTokenRenewBefore();
+        if (!renewBefore.isPositive()) {
+            return;
+        }
+        var derived = this.config.getDerived();
+        var keys = derived.keyRing();
+        var key = derived.signKey().getSecond();
+        var period = this.config.getTokenValidityPeriod();
+        var expire = OffsetDateTime.ofInstant(now, ZoneOffset.UTC).plus(period).toInstant();
+        var budget = MAX_RENEWALS_PER_CHECK;
+        var revocations = this.config.getRevocations();
+        for (var player : players) {
+            var profileId = player.getUUID();
+            var record = this.records.get(profileId);
+            if (budget <= 0 || record == null || this.renewing.contains(profileId) || revocations.isRevoked(record)) {
+                continue;
+            }
+            if (!isSignedBy(record, derived.ownKeyRing())) {
+                // records only signed by partners are never extended by this server
+                continue;
+            }
+            // each player renews at a fixed point of the window so that renewals are spread over time
+            var spread = 1.0 - Math.floorMod(profileId.hashCode(), 1024) / 2048.0;
+            var window = Duration.ofSeconds((long) (renewBefore.toSeconds() * spread));
+            var active = record.getSignatures().stream().filter(s -> s.getKeyId() == keys.getActiveId());
+            var activeExpire = active.map(MUARecord.SignEntry::getExpireAt).max(Instant::compareTo);
+            if (activeExpire.filter(e -> e.isAfter(now.plus(window))).isPresent()) {
+                continue;
+            }
+            budget -= 1;
+            this.renewing.add(profileId);
+            var signed = this.crypto(() -> record.getUser().sign(record.getProfile(), expire, keys, key));
+            signed.whenCompleteAsync((refreshed, e) -> {
+                this.renewing.remove(profileId);
+                if (e != null) {
+                    MUA2FA.LOGGER.warn(MARKER, "Failed to renew the record of player {}", profileId, e);
+                    return;
+                }
+                // the player may have logged out while the record was being signed
+                if (this.records.replace(profileId, record, refreshed)) {
+                    MUA2FA.LOGGER.debug(MARKER, "Renewed the record of player {} ({})",
+                            player.getGameProfile().getName(), profileId);
+                    var token = this.sessionTokens.computeIfAbsent(profileId, k -> TrustedSession.newToken());
+                    var packet = new RequestForClientRefreshPacket(refreshed, keys, derived.renewUriString(), token);
+                    PacketDistributor.sendToPlayer(player, packet);
+                }
+            }, executor);
+        }
+    }
+
+    public void handle(ResponseToServerRecordPacket packet, ConfigurationPeer peer) {
+        var record = packet.record();
+        var profile = peer.profile();
+        if (!record.getProfile().equals(profile)) {
+            // a record is only ever checked against the profile of the connection which sent it
+            MUA2FA.LOGGER.warn(MARKER, "Player {} ({}) sent a record of another profile",
+                    profile.getName(), profile.getId());
+            this.audit.finish(profile.getId(), "invalid");
+            peer.disconnect(Component.translatable("disconnect.timeout"));
+            // the connection of the player can be garbage collected
+            this.sessions.remove(profile.getId());
+            return;
+        }
+        var derived = this.config.getDerived();
+        var keys = derived.keyRing();
+        var key = derived.signKey();
+        // the record itself carries no state, so the event refers to the state the record was requested with
+        var pending = this.sessions.get(profile.getId());
+        var stateSignature = pending != null ? pending.stateSignature() : null;
+        var event = new LoginEvent.Verify(false);
+        event.begin();
+        var start = System.nanoTime();
+        var verifiedAt = this.clock.instant();
+        // revoked records are refused before any crypto work
+        var revoked = this.config.getRevocations().isRevoked(record);
+        var verification = revoked ? CompletableFuture.completedFuture(false) :
+                this.crypto(() -> record.verify(profile, keys).test(verifiedAt));
+        if (revoked) {
+            MUA2FA.LOGGER.debug(MARKER, "Player {} ({}) sent a revoked record", profile.getName(), profile.getId());
+        }
+        this.then(verification, peer, verified -> {
+            var profileId = profile.getId();
+            event.setVerified(verified);
+            var result = verified ? "ok" : revoked ? "revoked" : "invalid";
+            this.audit.commit(event, profileId, stateSignature, start, result);
+            if (verified) {
+                if (record.getSignatures().stream().anyMatch(sig -> keys.isPartner(sig.getKeyBytes()))) {
+                    // the record is not signed again, so the partner signature alone decides how long it is trusted
+                    MUA2FA.LOGGER.info(MARKER, "Player {} ({}) joined with a record signed by a partner server",
+                            profile.getName(), profile.getId());
+                }
+                var identity = MUAIdentity.of(record.getUser().sub());
+                var token = TrustedSession.newToken();
+                this.muaIdentities.put(profileId, identity);
+                this.sessionTokens.put(profileId, token);
+                this.trust(profileId, identity);
+                // the connection of the player can be garbage collected
+                this.sessions.remove(profileId);
+                this.then(this.rotate(record, derived), peer, refreshed -> {
+                    this.records.put(profileId, refreshed);
+                    this.audit.finish(profileId, "verified");
+                    peer.send(new RequestForClientRefreshPacket(refreshed, keys, derived.renewUriString(), token));
+                    peer.finish(CONFIGURATION);
+                });
+                return;
+            }
+            var session = this.sessions.get(profileId);
+            if (session != null) {
+                var now = this.clock.instant();
+                var ddl = session.deadline();
+                var duration = Duration.between(now, ddl);
+                var u1 = derived.authUriString();
+                var u2 = derived.recordUriString();
+                var expire = ddl.plus(OAuthHttp.NETWORK_TOLERANCE);
+                var state = this.crypto(() -> OAuthState.sign(profile.getId(), profile.getName(),
+                        expire, keys.getActiveId(), key.getSecond()));
+                this.then(state, peer, s -> {
+                    this.sessions.computeIfPresent(profileId, (k, v) -> v.withStateSignature(s.signature()));
+                    peer.send(new RequestForClientRecordPacket(keys, duration, true, u1, u2, s));
+                });
+            } else {
+                peer.disconnect(Component.translatable("disconnect.timeout"));
+                this.audit.finish(profileId, "timeout");
+                // the connection of the player can be garbage collected
+                this.sessions.remove(profileId);
+            }
+        });
+    }
+
+    public void handle(ResponseToServerSessionPacket packet, ConfigurationPeer peer) {
+        var now = this.clock.instant();
+        var profile = peer.profile();
+        var trusted = this.reconnecting.remove(profile.getId());
+        if (trusted == null) {
+            MUA2FA.LOGGER.debug(MARKER, "Player {} ({}) sent an unrequested session token",
+                    profile.getName(), profile.getId());
+            return;
+        }
+        var required = this.config.getMUARequireUnionAuth();
+        var revocations = this.config.getRevocations();
+        if (packet.token().filter(t -> trusted.matches(t, now, required)).isPresent()
+                && !(trusted.identity().isPresent() && revocations.isRevoked(trusted.identity().getSub()))) {
+            MUA2FA.LOGGER.debug(MARKER, "Player {} ({}) reconnected within the trusted period",
+                    profile.getName(), profile.getId());
+            this.audit.begin(profile.getId(), profile.getName());
+            this.audit.finish(profile.getId(), "trusted");
+            this.muaIdentities.put(profile.getId(), trusted.identity());
+            this.sessionTokens.put(profile.getId(), trusted.token());
+            peer.finish(CONFIGURATION);
+            return;
+        }
+        this.authenticate(profile, peer, now);
+    }
+
+    public void handle(ResponseToServerCancelPacket packet, ConfigurationPeer peer) {
+        var state = packet.state();
+        var event = new LoginEvent.Verify(true);
+        event.begin();
+        var start = System.nanoTime();
+        var keys = this.config.getTokenKeyRing();
+        var now = this.clock.instant();
+        this.then(this.crypto(() -> state.verify(keys).test(now)), peer, verified -> {
+            event.setVerified(verified);
+            this.audit.commit(event, state.id(), state.signature(), start, verified ? "ok" : "invalid");
+            if (!verified) {
+                this.audit.finish(state.id(), "invalid");
+                peer.disconnect(Component.translatable("disconnect.timeout"));
+                // the connection of the player can be garbage collected
+                this.sessions.remove(state.id());
+            } else if (this.config.getMUARequireUnionAuth()) {
+                this.audit.finish(state.id(), "refused");
+                peer.disconnect(Component.translatable("multiplayer.disconnect.not_whitelisted"));
+                // the connection of the player can be garbage collected
+                this.sessions.remove(state.id());
+            } else {
+                this.audit.finish(state.id(), "cancelled");
+                // no record is sent, so there is no token to echo and reconnecting goes through the flow again
+                this.muaIdentities.put(state.id(), MUAIdentity.NONE);
+                peer.finish(CONFIGURATION);
+                // the connection of the player can be garbage collected
+                this.sessions.remove(state.id());
+            }
+        });
+    }
+
+    private void authenticate(GameProfile profile, ConfigurationPeer peer, Instant now) {
+        var revocations = this.config.getRevocations();
+        var presigned = this.presigned.get(profile).filter(r -> !revocations.isRevoked(r));
+        if (presigned.isPresent()) {
+            var record = presigned.get();
+            var derived = this.config.getDerived();
+            var keys = derived.keyRing();
+            this.then(this.crypto(() -> record.verify(profile, keys).test(now)), peer, verified -> {
+                if (verified) {
+                    this.accept(profile, peer, record, derived);
+                } else {
+                    this.challenge(profile, peer, this.clock.instant());
+                }
+            });
+            return;
+        }
+        this.challenge(profile, peer, now);
+    }
+
+    private void accept(GameProfile profile, ConfigurationPeer peer, MUARecord record, DerivedSettings derived) {
+        var profileId = profile.getId();
+        MUA2FA.LOGGER.debug(MARKER, "Player {} ({}) joined with a pre-signed record", profile.getName(), profileId);
+        this.audit.begin(profileId, profile.getName());
+        var identity = MUAIdentity.of(record.getUser().sub());
+        var token = TrustedSession.newToken();
+        this.muaIdentities.put(profileId, identity);
+        this.sessionTokens.put(profileId, token);
+        this.trust(profileId, identity);
+        this.then(this.rotate(record, derived), peer, refreshed -> {
+            this.records.put(profileId, refreshed);
+            this.audit.finish(profileId, "presigned");
+            // the client keeps the record so that later joins no longer depend on the pre-signed table
+            var keys = derived.keyRing();
+            peer.send(new RequestForClientRefreshPacket(refreshed, keys, derived.renewUriString(), token));
+            peer.finish(CONFIGURATION);
+        });
+    }
+
+    private void challenge(GameProfile profile, ConfigurationPeer peer, Instant now) {
+        var session = this.sessions.compute(profile.getId(), (k, v) -> {
+            if (v == null) {
+                this.audit.begin(k, profile.getName());
+            }
+            var deadline = v != null ? v.deadline() : now.plus(OAuthHttp.MUA_REQUEST_COUNTDOWN);
+            var stateSignature = v != null ? v.stateSignature() : null;
+            return new ConnectionSession(deadline, profile, peer, stateSignature);
+            // the old connection of the player can be garbage collected
+        });
+        var ddl = session.deadline();
+        var derived = this.config.getDerived();
+        var keys = derived.keyRing();
+        var key = derived.signKey();
+        var duration = Duration.between(now, ddl);
+        var u1 = derived.authUriString();
+        var u2 = derived.recordUriString();
+        var expire = ddl.plus(OAuthHttp.POLL_INTERVAL);
+        var event = new LoginEvent.StateSign();
+        event.begin();
+        var start = System.nanoTime();
+        var state = this.crypto(() -> OAuthState.sign(profile.getId(), profile.getName(),
+                expire, keys.getActiveId(), key.getSecond())).whenComplete((s, e) -> {
+            var signature = s != null ? s.signature() : null;
+            this.audit.commit(event, profile.getId(), signature, start, e == null ? "ok" : "error");
+        });
+        this.then(state, peer, s -> {
+            this.sessions.computeIfPresent(profile.getId(), (k, v) -> v.withStateSignature(s.signature()));
+            peer.send(new RequestForClientRecordPacket(keys, duration, false, u1, u2, s));
+        });
+    }
+
+    private void trust(UUID profileId, MUAIdentity identity) {
+        var ttl = this.config.getTokenTrustedReconnectTtl();
+        var token = this.sessionTokens.get(profileId);
+        if (ttl.isPositive() && token != null) {
+            var trusted = new TrustedSession(token, identity, this.clock.instant().plus(ttl));
+            this.trustedSessions.put(profileId, trusted);
+        } else {
+            this.trustedSessions.remove(profileId);
+        }
+    }
+
+    private CompletableFuture<MUARecord> rotate(MUARecord record, DerivedSettings derived) {
+        var now = OffsetDateTime.ofInstant(this.clock.instant(), ZoneOffset.UTC);
+        var activeKeyId = derived.keyRing().getActiveId();
+        var active = record.getSignatures().stream().filter(s -> s.getKeyId() == activeKeyId);
+        // records only signed by partners are trusted within their own validity, and never signed again here
+        if (!isSignedBy(record, derived.ownKeyRing())) {
+            return CompletableFuture.completedFuture(record);
+        }
+        // records only signed by verify-only keys are signed again so that the old keys can be retired gradually
+        if (active.anyMatch(s -> s.getExpireAt().isAfter(now.toInstant()))) {
+            return CompletableFuture.completedFuture(record);
+        }
+        var expire = now.plus(this.config.getTokenValidityPeriod()).toInstant();
+        var key = derived.signKey().getSecond();
+        return this.crypto(() -> record.getUser().sign(record.getProfile(), expire, derived.keyRing(), key));
+    }
+
+    private static boolean isSignedBy(MUARecord record, KeyRing keys) {
+        return record.getSignatures().stream().anyMatch(s -> keys.get(s.getKeyId(), s.getKeyBytes()) != null);
+    }
+
+    private <T> CompletableFuture<T> crypto(Supplier<T> task) {
+        return Ed25519.supplyAsync(task, this.crypto);
+    }
+
+    private <T> void then(CompletableFuture<T> future, ConfigurationPeer peer, Consumer<T> action) {
+        future.whenCompleteAsync((result, e) -> {
+            if (e != null) {
+                var profileId = peer.profile().getId();
+                MUA2FA.LOGGER.warn(MARKER, "Failed to process the crypto work of player {}", profileId, e);
+                // the attempt would otherwise stay open until the server stops, as no later stage finishes it
+                this.audit.finish(profileId, "error");
+                peer.disconnect(Component.translatable("disconnect.timeout"));
+                // the connection of the player can be garbage collected
+                this.sessions.remove(profileId);
+                return;
+            }
+            action.accept(result);
+        }, peer.executor());
+    }
+}
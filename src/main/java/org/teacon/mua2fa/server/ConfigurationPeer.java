@@ -0,0 +1,102 @@
+package org.teacon.mua2fa.server;
+
+import com.mojang.authlib.GameProfile;
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.network.chat.Component;
+import net.minecraft.network.protocol.common.custom.CustomPacketPayload;
+import net.minecraft.server.network.ConfigurationTask;
+import net.minecraft.server.network.ServerConfigurationPacketListenerImpl;
+import net.neoforged.neoforge.network.handling.IPayloadContext;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.net.SocketAddress;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public interface ConfigurationPeer {
+    GameProfile profile();
+
+    SocketAddress remoteAddress();
+
+    Executor executor();
+
+    void send(CustomPacketPayload payload);
+
+    void disconnect(Component reason);
+
+    void finish(ConfigurationTask.Type type);
+
+    static ConfigurationPeer of(ServerConfigurationPacketListenerImpl conn, Consumer<CustomPacketPayload> sender) {
+        return new ConfigurationPeer() {
+            @Override
+            public GameProfile profile() {
+                return conn.getOwner();
+            }
+
+            @Override
+            public SocketAddress remoteAddress() {
+                return conn.getConnection().getRemoteAddress();
+            }
+
+            @Override
+            public Executor executor() {
+                return conn.getMainThreadEventLoop();
+            }
+
+            @Override
+            public void send(CustomPacketPayload payload) {
+                sender.accept(payload);
+            }
+
+            @Override
+            public void disconnect(Component reason) {
+                conn.disconnect(reason);
+            }
+
+            @Override
+            public void finish(ConfigurationTask.Type type) {
+                conn.finishCurrentTask(type);
+            }
+        };
+    }
+
+    static ConfigurationPeer of(IPayloadContext context) {
+        // the payloads handled by the flow are only registered for the configuration phase
+        var conn = (ServerConfigurationPacketListenerImpl) context.listener();
+        return new ConfigurationPeer() {
+            @Override
+            public GameProfile profile() {
+                return conn.getOwner();
+            }
+
+            @Override
+            public SocketAddress remoteAddress() {
+                return context.connection().getRemoteAddress();
+            }
+
+            @Override
+            public Executor executor() {
+                return context::enqueueWork;
+            }
+
+            @Override
+            public void send(CustomPacketPayload payload) {
+                context.reply(payload);
+            }
+
+            @Override
+            public void disconnect(Component reason) {
+                context.disconnect(reason);
+            }
+
+            @Override
+            public void finish(ConfigurationTask.Type type) {
+                context.finishCurrentTask(type);
+            }
+        };
+    }
+}
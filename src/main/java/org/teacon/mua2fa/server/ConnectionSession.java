@@ -1,15 +1,20 @@
 package org.teacon.mua2fa.server;
 
+import com.google.common.hash.HashCode;
+import com.mojang.authlib.GameProfile;
 import net.minecraft.FieldsAreNonnullByDefault;
 import net.minecraft.MethodsReturnNonnullByDefault;
-import net.minecraft.server.network.ServerConfigurationPacketListenerImpl;
 
+import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 import java.time.Instant;
 
 @FieldsAreNonnullByDefault
 @MethodsReturnNonnullByDefault
 @ParametersAreNonnullByDefault
-public record ConnectionSession(Instant deadline, ServerConfigurationPacketListenerImpl conn) {
-    // nothing here
+public record ConnectionSession(Instant deadline, GameProfile profile,
+                                ConfigurationPeer peer, @Nullable HashCode stateSignature) {
+    public ConnectionSession withStateSignature(HashCode stateSignature) {
+        return new ConnectionSession(this.deadline, this.profile, this.peer, stateSignature);
+    }
 }
@@ -0,0 +1,33 @@
+package org.teacon.mua2fa.server;
+
+import com.mojang.datafixers.util.Pair;
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import org.teacon.mua2fa.data.KeyRing;
+import org.teacon.mua2fa.data.OAuthHttp;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.net.URI;
+import java.security.interfaces.EdECPrivateKey;
+import java.security.interfaces.EdECPublicKey;
+import java.util.Collection;
+
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public record DerivedSettings(URI externalUri, String externalUriString, String authUriString,
+                              String recordUriString, String renewUriString,
+                              Pair<EdECPublicKey, EdECPrivateKey> signKey, KeyRing keyRing, KeyRing ownKeyRing) {
+    public static DerivedSettings of(URI externalUri, Pair<EdECPublicKey, EdECPrivateKey> signKey,
+                                     Collection<? extends EdECPublicKey> verifyOnlyKeys,
+                                     Collection<? extends EdECPublicKey> partnerKeys) {
+        var authUri = OAuthHttp.auth(externalUri);
+        var recordUri = OAuthHttp.record(externalUri);
+        var renewUri = OAuthHttp.renew(externalUri);
+        var keyRing = new KeyRing(signKey.getFirst(), verifyOnlyKeys, partnerKeys);
+        // records which are signed again by this server must carry a signature of its own keys
+        var ownKeyRing = new KeyRing(signKey.getFirst(), verifyOnlyKeys);
+        return new DerivedSettings(externalUri, externalUri.toString(), authUri.toString(),
+                recordUri.toString(), renewUri.toString(), signKey, keyRing, ownKeyRing);
+    }
+}
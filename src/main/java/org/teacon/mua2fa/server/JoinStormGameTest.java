@@ -0,0 +1,37 @@
+package org.teacon.mua2fa.server;
+
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.gametest.framework.GameTest;
+import net.minecraft.gametest.framework.GameTestAssertException;
+import net.minecraft.gametest.framework.GameTestHelper;
+import net.neoforged.neoforge.gametest.GameTestHolder;
+import net.neoforged.neoforge.gametest.PrefixGameTestTemplate;
+import org.teacon.mua2fa.MUA2FA;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+@GameTestHolder(MUA2FA.ID)
+@PrefixGameTestTemplate(false)
+public final class JoinStormGameTest {
+    private JoinStormGameTest() {
+        throw new UnsupportedOperationException();
+    }
+
+    // the wall clock limit of the simulator is one minute, which is 1200 ticks
+    @GameTest(template = "empty", timeoutTicks = 1500)
+    public static void joinStorm(GameTestHelper helper) {
+        var server = helper.getLevel().getServer();
+        var mix = new JoinStormSimulator.Mix(85, 10, 3, 2);
+        var simulator = new JoinStormSimulator(mix, 1000, server::getAverageTickTimeNanos);
+        simulator.start();
+        helper.onEachTick(simulator::tick);
+        helper.succeedWhen(() -> {
+            var report = simulator.report().orElseThrow(() -> new GameTestAssertException("storm still running"));
+            helper.assertTrue(report.unresolved() == 0L, report.unresolved() + " players left unresolved");
+        });
+    }
+}
@@ -0,0 +1,366 @@
+package org.teacon.mua2fa.server;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.mojang.authlib.GameProfile;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.network.chat.Component;
+import net.minecraft.network.protocol.common.custom.CustomPacketPayload;
+import net.minecraft.server.network.ConfigurationTask;
+import net.minecraft.util.RandomSource;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+import org.teacon.mua2fa.MUA2FA;
+import org.teacon.mua2fa.data.Ed25519;
+import org.teacon.mua2fa.data.KeyRing;
+import org.teacon.mua2fa.data.MUARecord;
+import org.teacon.mua2fa.data.OAuthHttp;
+import org.teacon.mua2fa.network.RequestForClientRecordPacket;
+import org.teacon.mua2fa.network.ResponseToServerCancelPacket;
+import org.teacon.mua2fa.network.ResponseToServerRecordPacket;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.InstantSource;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.LongSupplier;
+
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public final class JoinStormSimulator {
+    private static final Marker MARKER = MarkerManager.getMarker("Simulator");
+    private static final Duration WALL_CLOCK_LIMIT = Duration.ofMinutes(1L);
+    private static final Duration TICK = Duration.ofMillis(50L);
+
+    private final ManualClock clock;
+    private final ExecutorService crypto;
+    private final ConfigurationFlow flow;
+    private final List<SimulatedPeer> peers;
+    private final LongSupplier tickTimeNanos;
+    private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+    private final Map<Phase, LongList> latencies = new EnumMap<>(Phase.class);
+    private final Map<Phase, LongList> tickTimes = new EnumMap<>(Phase.class);
+
+    private long start;
+    private @Nullable Report report;
+
+    public JoinStormSimulator(Mix mix, int players, LongSupplier tickTimeNanos) {
+        Preconditions.checkArgument(players > 0, "no players to simulate");
+        // a throwaway config with a freshly generated key, so the live sign key is never used for fake players
+        var config = ConfigSpec.ofDefaults();
+        // the crypto work has its own pool, so the storm never fills the queue shared by real joins
+        var threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+        var factory = new ThreadFactoryBuilder().setNameFormat("MUA2FA-Simulator-%d").setDaemon(true).build();
+        var random = RandomSource.create();
+        this.clock = new ManualClock(Instant.now());
+        this.crypto = Executors.newFixedThreadPool(threads, factory);
+        this.flow = new ConfigurationFlow(config, this.clock, AuditLog.DISCARD, PresignedTable.EMPTY, this.crypto);
+        this.peers = new ArrayList<>(players);
+        this.tickTimeNanos = tickTimeNanos;
+        for (var phase : Phase.values()) {
+            this.latencies.put(phase, new LongArrayList(players));
+            this.tickTimes.put(phase, new LongArrayList(players));
+        }
+        // all the client side work, including signing records, is done before the storm begins
+        var forged = Ed25519.generate();
+        var forgedKeys = new KeyRing(forged.getFirst(), List.of());
+        var derived = config.getDerived();
+        for (var i = 0; i < players; ++i) {
+            var kind = mix.pick(random);
+            var profile = new GameProfile(new UUID(random.nextLong(), random.nextLong()), "sim_" + i);
+            var user = new MUARecord.User("sim:" + i, profile.getName(), profile.getName() + "@example.com");
+            var expire = this.clock.instant().plus(Duration.ofDays(1L));
+            var record = switch (kind) {
+                case VALID -> user.sign(profile, expire, derived.keyRing(), derived.signKey().getSecond());
+                case FORGED -> user.sign(profile, expire, forgedKeys, forged.getSecond());
+                case CANCEL, TIMEOUT -> null;
+            };
+            this.peers.add(new SimulatedPeer(kind, profile, record, address(i), this));
+        }
+    }
+
+    public void start() {
+        Preconditions.checkState(this.start == 0L, "already started");
+        MUA2FA.LOGGER.info(MARKER, "Simulating {} players joining at the same time ...", this.peers.size());
+        this.start = System.nanoTime();
+        for (var peer : this.peers) {
+            peer.begin();
+        }
+    }
+
+    // called once per server tick on the server thread, so the tick time covers the work of the storm
+    public void tick() {
+        if (this.start == 0L || this.report != null) {
+            return;
+        }
+        this.runQueued();
+        this.flow.tick();
+        var pending = this.peers.stream().filter(p -> p.kind != Kind.TIMEOUT && !p.resolved).count();
+        if (pending == 0 || System.nanoTime() - this.start > WALL_CLOCK_LIMIT.toNanos()) {
+            this.report = this.finish();
+            for (var line : this.report.lines()) {
+                MUA2FA.LOGGER.info(MARKER, line);
+            }
+        }
+    }
+
+    public Optional<Report> report() {
+        return Optional.ofNullable(this.report);
+    }
+
+    private Report finish() {
+        // players who never answer are disconnected by the tick after the deadline passed
+        this.clock.advance(OAuthHttp.MUA_REQUEST_COUNTDOWN.plus(OAuthHttp.NETWORK_TOLERANCE).plus(TICK));
+        this.flow.tick();
+        this.runQueued();
+        var elapsed = Duration.ofNanos(System.nanoTime() - this.start);
+        this.flow.clear();
+        this.crypto.shutdownNow();
+        var finished = this.peers.stream().filter(p -> p.finished).count();
+        var disconnected = this.peers.stream().filter(p -> p.disconnected).count();
+        var unresolved = this.peers.stream().filter(p -> !p.resolved).count();
+        return new Report(this.peers.size(), elapsed, finished,
+                disconnected, unresolved, this.latencies, this.tickTimes);
+    }
+
+    private void runQueued() {
+        for (var task = this.queue.poll(); task != null; task = this.queue.poll()) {
+            task.run();
+        }
+    }
+
+    private void record(Phase phase, long latencyNanos) {
+        // the average over the last ticks of the server, sampled when each phase of a player completes
+        this.latencies.get(phase).add(latencyNanos);
+        this.tickTimes.get(phase).add(this.tickTimeNanos.getAsLong());
+    }
+
+    private static SocketAddress address(int index) {
+        var bytes = new byte[]{10, (byte) (index >> 16), (byte) (index >> 8), (byte) index};
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(bytes), 25565);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long percentile(LongList sorted, double p) {
+        if (sorted.isEmpty()) {
+            return 0L;
+        }
+        var index = (int) Math.ceil(p * sorted.size()) - 1;
+        return sorted.getLong(Math.max(0, Math.min(sorted.size() - 1, index)));
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.2fms", nanos / 1.0E6);
+    }
+
+    @FieldsAreNonnullByDefault
+    @MethodsReturnNonnullByDefault
+    @ParametersAreNonnullByDefault
+    public enum Kind {
+        VALID, CANCEL, FORGED, TIMEOUT
+    }
+
+    @FieldsAreNonnullByDefault
+    @MethodsReturnNonnullByDefault
+    @ParametersAreNonnullByDefault
+    public enum Phase {
+        REQUEST, VALID, CANCEL, FORGED
+    }
+
+    @FieldsAreNonnullByDefault
+    @MethodsReturnNonnullByDefault
+    @ParametersAreNonnullByDefault
+    public record Mix(int valid, int cancel, int forged, int timeout) {
+        public Mix {
+            Preconditions.checkArgument(valid >= 0 && cancel >= 0 && forged >= 0 && timeout >= 0);
+            Preconditions.checkArgument(valid + cancel + forged + timeout > 0, "empty mix");
+        }
+
+        public Kind pick(RandomSource random) {
+            var i = random.nextInt(this.valid + this.cancel + this.forged + this.timeout);
+            if (i < this.valid) {
+                return Kind.VALID;
+            }
+            if (i < this.valid + this.cancel) {
+                return Kind.CANCEL;
+            }
+            return i < this.valid + this.cancel + this.forged ? Kind.FORGED : Kind.TIMEOUT;
+        }
+    }
+
+    @FieldsAreNonnullByDefault
+    @MethodsReturnNonnullByDefault
+    @ParametersAreNonnullByDefault
+    public record Report(int players, Duration elapsed, long finished,
+                         long disconnected, long unresolved, Map<Phase, LongList> latencies,
+                         Map<Phase, LongList> tickTimes) {
+        public List<String> lines() {
+            var result = new ArrayList<String>();
+            var seconds = Math.max(this.elapsed.toNanos(), 1L) / 1.0E9;
+            result.add(String.format(Locale.ROOT, "%d players in %.2fs (%.1f joins/s): %d finished, " +
+                            "%d disconnected, %d unresolved", this.players, seconds, this.players / seconds,
+                    this.finished, this.disconnected, this.unresolved));
+            for (var entry : this.latencies.entrySet()) {
+                var sorted = new LongArrayList(entry.getValue());
+                sorted.sort(null);
+                var ticks = new LongArrayList(this.tickTimes.getOrDefault(entry.getKey(), LongList.of()));
+                ticks.sort(null);
+                var name = entry.getKey().name().toLowerCase(Locale.ROOT);
+                result.add(String.format(Locale.ROOT, "%s (%d samples): p50 %s, p90 %s, p99 %s, " +
+                                "tick time p50 %s, p99 %s, max %s", name, sorted.size(),
+                        millis(percentile(sorted, 0.5)), millis(percentile(sorted, 0.9)),
+                        millis(percentile(sorted, 0.99)), millis(percentile(ticks, 0.5)),
+                        millis(percentile(ticks, 0.99)), millis(percentile(ticks, 1.0))));
+            }
+            return result;
+        }
+    }
+
+    @FieldsAreNonnullByDefault
+    @MethodsReturnNonnullByDefault
+    @ParametersAreNonnullByDefault
+    private static final class ManualClock implements InstantSource {
+        private Instant now;
+
+        private ManualClock(Instant now) {
+            this.now = now;
+        }
+
+        private void advance(Duration duration) {
+            this.now = this.now.plus(duration);
+        }
+
+        @Override
+        public Instant instant() {
+            return this.now;
+        }
+    }
+
+    @FieldsAreNonnullByDefault
+    @MethodsReturnNonnullByDefault
+    @ParametersAreNonnullByDefault
+    private static final class SimulatedPeer implements ConfigurationPeer {
+        private final Kind kind;
+        private final GameProfile profile;
+        private final @Nullable MUARecord record;
+        private final SocketAddress address;
+        private final JoinStormSimulator simulator;
+
+        private long phaseStart;
+        private boolean requested;
+        private boolean resolved;
+        private boolean finished;
+        private boolean disconnected;
+
+        private SimulatedPeer(Kind kind, GameProfile profile, @Nullable MUARecord record,
+                              SocketAddress address, JoinStormSimulator simulator) {
+            this.kind = kind;
+            this.profile = profile;
+            this.record = record;
+            this.address = address;
+            this.simulator = simulator;
+        }
+
+        private void begin() {
+            this.phaseStart = System.nanoTime();
+            this.simulator.flow.begin(this.profile, this);
+        }
+
+        private void resolve() {
+            if (!this.resolved) {
+                this.resolved = true;
+                var phase = switch (this.kind) {
+                    case VALID -> Phase.VALID;
+                    case CANCEL -> Phase.CANCEL;
+                    case FORGED -> Phase.FORGED;
+                    case TIMEOUT -> null;
+                };
+                if (phase != null) {
+                    this.simulator.record(phase, System.nanoTime() - this.phaseStart);
+                }
+            }
+        }
+
+        @Override
+        public GameProfile profile() {
+            return this.profile;
+        }
+
+        @Override
+        public SocketAddress remoteAddress() {
+            return this.address;
+        }
+
+        @Override
+        public Executor executor() {
+            return this.simulator.queue::add;
+        }
+
+        @Override
+        public void send(CustomPacketPayload payload) {
+            if (payload instanceof RequestForClientRecordPacket packet) {
+                if (this.requested) {
+                    // forged records are refused and the server asks for a new one
+                    this.resolve();
+                    return;
+                }
+                this.requested = true;
+                this.simulator.record(Phase.REQUEST, System.nanoTime() - this.phaseStart);
+                this.phaseStart = System.nanoTime();
+                switch (this.kind) {
+                    case VALID, FORGED -> {
+                        // answered as is, since a forged signature matches no key of the server
+                        var record = Objects.requireNonNull(this.record);
+                        var sig = record.getSignatures().getFirst();
+                        var response = new ResponseToServerRecordPacket(record.getProfile(), record.getUser(), sig);
+                        this.simulator.queue.add(() -> this.simulator.flow.handle(response, this));
+                    }
+                    case CANCEL -> {
+                        var response = new ResponseToServerCancelPacket(packet.state());
+                        this.simulator.queue.add(() -> this.simulator.flow.handle(response, this));
+                    }
+                    case TIMEOUT -> {
+                        // never answers
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void disconnect(Component reason) {
+            this.disconnected = true;
+            this.resolve();
+        }
+
+        @Override
+        public void finish(ConfigurationTask.Type type) {
+            this.finished = true;
+            this.resolve();
+        }
+    }
+}
@@ -4,10 +4,8 @@ import io.netty.channel.epoll.Epoll;
 import net.minecraft.FieldsAreNonnullByDefault;
 import net.minecraft.MethodsReturnNonnullByDefault;
 import net.minecraft.Util;
-import net.minecraft.network.chat.Component;
 import net.minecraft.network.protocol.common.custom.CustomPacketPayload;
-import net.minecraft.resources.ResourceLocation;
-import net.minecraft.server.network.ConfigurationTask;
+import net.minecraft.server.level.ServerPlayer;
 import net.minecraft.server.network.ServerConfigurationPacketListenerImpl;
 import net.neoforged.api.distmarker.Dist;
 import net.neoforged.bus.api.IEventBus;
@@ -15,7 +13,9 @@ import net.neoforged.fml.ModContainer;
 import net.neoforged.fml.common.Mod;
 import net.neoforged.fml.config.ModConfig;
 import net.neoforged.fml.event.lifecycle.FMLDedicatedServerSetupEvent;
+import net.neoforged.fml.loading.FMLPaths;
 import net.neoforged.neoforge.common.NeoForge;
+import net.neoforged.neoforge.event.RegisterCommandsEvent;
 import net.neoforged.neoforge.event.entity.player.PlayerEvent;
 import net.neoforged.neoforge.event.server.ServerStartingEvent;
 import net.neoforged.neoforge.event.server.ServerStoppingEvent;
@@ -23,22 +23,21 @@ import net.neoforged.neoforge.event.tick.ServerTickEvent;
 import net.neoforged.neoforge.network.configuration.ICustomConfigurationTask;
 import net.neoforged.neoforge.network.event.RegisterConfigurationTasksEvent;
 import net.neoforged.neoforge.network.event.RegisterPayloadHandlersEvent;
-import net.neoforged.neoforge.network.handling.IPayloadContext;
-import org.apache.logging.log4j.Marker;
-import org.apache.logging.log4j.MarkerManager;
 import org.teacon.mua2fa.MUA2FA;
+import org.teacon.mua2fa.data.Ed25519;
+import org.teacon.mua2fa.data.MUAIdentity;
 import org.teacon.mua2fa.data.MUASelector;
 import org.teacon.mua2fa.data.OAuthHttp;
-import org.teacon.mua2fa.data.OAuthState;
 import org.teacon.mua2fa.network.RequestForClientRecordPacket;
 import org.teacon.mua2fa.network.RequestForClientRefreshPacket;
+import org.teacon.mua2fa.network.RequestForClientSessionPacket;
 import org.teacon.mua2fa.network.ResponseToServerCancelPacket;
 import org.teacon.mua2fa.network.ResponseToServerRecordPacket;
+import org.teacon.mua2fa.network.ResponseToServerSessionPacket;
 
 import javax.annotation.ParametersAreNonnullByDefault;
-import java.time.Duration;
-import java.time.Instant;
-import java.util.*;
+import java.time.InstantSource;
+import java.util.Objects;
 import java.util.function.Consumer;
 
 @FieldsAreNonnullByDefault
@@ -46,15 +45,11 @@ import java.util.function.Consumer;
 @ParametersAreNonnullByDefault
 @Mod(value = MUA2FA.ID, dist = Dist.DEDICATED_SERVER)
 public final class MUA2FADedicatedServer {
-    private static final ConfigurationTask.Type CONFIGURATION;
-    private static final Marker MARKER = MarkerManager.getMarker("Server");
+    private static final int RENEW_CHECK_TICKS = 1200;
 
-    static {
-        CONFIGURATION = new ConfigurationTask.Type(ResourceLocation.fromNamespaceAndPath(MUA2FA.ID, "configuration"));
-    }
-
-    private final Map<UUID, ConnectionSession> sessions = new HashMap<>();
-    private final Map<UUID, Optional<String>> muaIdentifiers = new HashMap<>();
+    private final ConfigurationFlow flow;
+    private final PresignedTable presigned;
+    private final AuditLog audit;
     private final OAuthHttp server;
     private final String userAgent;
     private final ConfigSpec config;
@@ -64,14 +59,21 @@ public final class MUA2FADedicatedServer {
         modEventBus.addListener(RegisterPayloadHandlersEvent.class, this::on);
         modEventBus.addListener(FMLDedicatedServerSetupEvent.class, this::on);
 
+        NeoForge.EVENT_BUS.addListener(PlayerEvent.PlayerLoggedInEvent.class, this::on);
         NeoForge.EVENT_BUS.addListener(PlayerEvent.PlayerLoggedOutEvent.class, this::on);
+        NeoForge.EVENT_BUS.addListener(PlayerEvent.Clone.class, this::on);
+        NeoForge.EVENT_BUS.addListener(RegisterCommandsEvent.class, this::on);
         NeoForge.EVENT_BUS.addListener(ServerTickEvent.Post.class, this::on);
         NeoForge.EVENT_BUS.addListener(ServerStartingEvent.class, this::on);
         NeoForge.EVENT_BUS.addListener(ServerStoppingEvent.class, this::on);
 
         this.config = Util.make(new ConfigSpec(), conf -> container.registerConfig(ModConfig.Type.SERVER, conf));
         this.userAgent = "MUA2FA/" + container.getModInfo().getVersion();
-        this.server = new OAuthHttp();
+        this.audit = AuditLog.open(FMLPaths.GAMEDIR.get().resolve("logs").resolve("mua2fa-audit.jsonl"));
+        this.presigned = PresignedTable.open(FMLPaths.GAMEDIR.get().resolve("mua2fa-presigned.jsonl"));
+        this.flow = new ConfigurationFlow(this.config,
+                InstantSource.system(), this.audit, this.presigned, Ed25519.executor());
+        this.server = new OAuthHttp(this.audit);
     }
 
     private void on(RegisterConfigurationTasksEvent event) {
@@ -79,30 +81,15 @@ public final class MUA2FADedicatedServer {
             @Override
             public void run(Consumer<CustomPacketPayload> sender) {
                 if (event.getListener() instanceof ServerConfigurationPacketListenerImpl conn) {
-                    conn.getMainThreadEventLoop().execute(() -> {
-                        var now = Instant.now();
-                        var profile = conn.getOwner();
-                        var config = MUA2FADedicatedServer.this.config;
-                        var session = MUA2FADedicatedServer.this.sessions.compute(profile.getId(), (k, v) -> {
-                            var deadline = v != null ? v.deadline() : now.plus(OAuthHttp.MUA_REQUEST_COUNTDOWN);
-                            return new ConnectionSession(deadline, conn);
-                            // the old connection of the player can be garbage collected
-                        });
-                        var ddl = session.deadline();
-                        var key = config.getTokenSignKey();
-                        var duration = Duration.between(now, ddl);
-                        var u1 = OAuthHttp.auth(config).toString();
-                        var u2 = OAuthHttp.record(config).toString();
-                        var expire = ddl.plus(OAuthHttp.POLL_INTERVAL);
-                        var state = OAuthState.sign(profile.getId(), profile.getName(), expire, key.getSecond());
-                        sender.accept(new RequestForClientRecordPacket(key.getFirst(), duration, false, u1, u2, state));
-                    });
+                    var peer = ConfigurationPeer.of(conn, sender);
+                    var flow = MUA2FADedicatedServer.this.flow;
+                    conn.getMainThreadEventLoop().execute(() -> flow.begin(conn.getOwner(), peer));
                 }
             }
 
             @Override
             public Type type() {
-                return CONFIGURATION;
+                return ConfigurationFlow.CONFIGURATION;
             }
         });
     }
@@ -111,22 +98,32 @@ public final class MUA2FADedicatedServer {
         var registrar = event.registrar(MUA2FA.NETWORK_VERSION);
         registrar.configurationToClient(RequestForClientRecordPacket.TYPE,
                 RequestForClientRecordPacket.STREAM_CODEC, Objects::hash);
-        registrar.configurationToClient(RequestForClientRefreshPacket.TYPE,
+        registrar.commonToClient(RequestForClientRefreshPacket.TYPE,
                 RequestForClientRefreshPacket.STREAM_CODEC, Objects::hash);
         registrar.configurationToServer(ResponseToServerRecordPacket.TYPE,
-                ResponseToServerRecordPacket.STREAM_CODEC, this::handle);
+                ResponseToServerRecordPacket.STREAM_CODEC, (p, c) -> this.flow.handle(p, ConfigurationPeer.of(c)));
         registrar.configurationToServer(ResponseToServerCancelPacket.TYPE,
-                ResponseToServerCancelPacket.STREAM_CODEC, this::handle);
+                ResponseToServerCancelPacket.STREAM_CODEC, (p, c) -> this.flow.handle(p, ConfigurationPeer.of(c)));
+        registrar.configurationToClient(RequestForClientSessionPacket.TYPE,
+                RequestForClientSessionPacket.STREAM_CODEC, Objects::hash);
+        registrar.configurationToServer(ResponseToServerSessionPacket.TYPE,
+                ResponseToServerSessionPacket.STREAM_CODEC, (p, c) -> this.flow.handle(p, ConfigurationPeer.of(c)));
     }
 
     private void on(FMLDedicatedServerSetupEvent event) {
-        event.enqueueWork(() -> MUASelector.register(((matcher, player) -> {
-            var identifier = this.muaIdentifiers.getOrDefault(player.getUUID(), Optional.empty());
-            return identifier.filter(matcher).isPresent();
-        })));
+        event.enqueueWork(MUASelector::register);
+    }
+
+    private void on(RegisterCommandsEvent event) {
+        MUACommands.register(event.getDispatcher(), this.config, this.presigned);
     }
 
     private void on(ServerStartingEvent event) {
+        Ed25519.warmUpAsync();
+        var signBackend = this.config.getTokenSignBackend();
+        if (signBackend != Ed25519.Backend.JDK) {
+            Ed25519.useSignBackendAsync(signBackend);
+        }
         var internal = this.config.getServerInternalAddress();
         if (internal.getPort() > 0) {
             var server = event.getServer();
@@ -135,80 +132,33 @@ public final class MUA2FADedicatedServer {
     }
 
     private void on(ServerTickEvent.Post event) {
-        this.sessions.entrySet().removeIf(entry -> {
-            var session = entry.getValue();
-            // allow additional 30 seconds for network delays
-            if (session.deadline().plus(OAuthHttp.NETWORK_TOLERANCE).isBefore(Instant.now())) {
-                var profile = session.conn().getOwner();
-                MUA2FA.LOGGER.info(MARKER, "Player {} ({}) time out", profile.getName(), profile.getId());
-                session.conn().disconnect(Component.translatable("disconnect.timeout"));
-                // the connection of the player can be garbage collected
-                return true;
-            }
-            return false;
-        });
+        this.flow.tick();
+        var server = event.getServer();
+        if (server.getTickCount() % RENEW_CHECK_TICKS == 0) {
+            this.flow.renew(server.getPlayerList().getPlayers(), server);
+        }
     }
 
-    private void on(PlayerEvent.PlayerLoggedOutEvent event) {
-        var player = event.getEntity();
-        // the connection of the player can be garbage collected
-        this.sessions.remove(player.getUUID());
-        this.muaIdentifiers.remove(player.getUUID());
+    private void on(PlayerEvent.PlayerLoggedInEvent event) {
+        if (event.getEntity() instanceof ServerPlayer player) {
+            player.setData(MUAIdentity.ATTACHMENT, this.flow.getIdentity(player.getUUID()));
+        }
     }
 
-    private void on(ServerStoppingEvent event) {
-        this.server.close();
-        // all the connections can be garbage collected
-        this.sessions.clear();
-        this.muaIdentifiers.clear();
+    private void on(PlayerEvent.Clone event) {
+        // the attachment is not serialized, so it has to be carried over on respawn and on returning from the end
+        event.getEntity().setData(MUAIdentity.ATTACHMENT, MUAIdentity.get(event.getOriginal()));
     }
 
-    private void handle(ResponseToServerRecordPacket packet, IPayloadContext context) {
-        var record = packet.record();
-        var profile = record.getProfile();
-        var key = this.config.getTokenSignKey();
-        if (record.verify(profile, key.getFirst()).test(Instant.now())) {
-            var profileId = profile.getId();
-            this.muaIdentifiers.put(profileId, Optional.of(record.getUser().sub()));
-            context.reply(new RequestForClientRefreshPacket(record));
-            context.finishCurrentTask(CONFIGURATION);
-            // the connection of the player can be garbage collected
-            this.sessions.remove(profileId);
-        } else {
-            var profileId = profile.getId();
-            var session = this.sessions.get(profileId);
-            if (session != null) {
-                var now = Instant.now();
-                var ddl = session.deadline();
-                var duration = Duration.between(now, ddl);
-                var u1 = OAuthHttp.auth(this.config).toString();
-                var u2 = OAuthHttp.record(this.config).toString();
-                var expire = ddl.plus(OAuthHttp.NETWORK_TOLERANCE);
-                var state = OAuthState.sign(profile.getId(), profile.getName(), expire, key.getSecond());
-                context.reply(new RequestForClientRecordPacket(key.getFirst(), duration, true, u1, u2, state));
-            } else {
-                context.disconnect(Component.translatable("disconnect.timeout"));
-                // the connection of the player can be garbage collected
-                this.sessions.remove(profileId);
-            }
+    private void on(PlayerEvent.PlayerLoggedOutEvent event) {
+        if (event.getEntity() instanceof ServerPlayer player) {
+            this.flow.logout(player.getUUID());
         }
     }
 
-    private void handle(ResponseToServerCancelPacket packet, IPayloadContext context) {
-        var state = packet.state();
-        if (!state.verify(this.config.getTokenSignKey().getFirst()).test(Instant.now())) {
-            context.disconnect(Component.translatable("disconnect.timeout"));
-            // the connection of the player can be garbage collected
-            this.sessions.remove(state.id());
-        } else if (this.config.getMUARequireUnionAuth()) {
-            context.disconnect(Component.translatable("multiplayer.disconnect.not_whitelisted"));
-            // the connection of the player can be garbage collected
-            this.sessions.remove(state.id());
-        } else {
-            this.muaIdentifiers.put(state.id(), Optional.empty());
-            context.finishCurrentTask(CONFIGURATION);
-            // the connection of the player can be garbage collected
-            this.sessions.remove(state.id());
-        }
+    private void on(ServerStoppingEvent event) {
+        this.server.close();
+        this.flow.clear();
+        this.audit.close();
     }
 }
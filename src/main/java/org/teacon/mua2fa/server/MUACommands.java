@@ -0,0 +1,67 @@
+package org.teacon.mua2fa.server;
+
+import com.mojang.brigadier.Command;
+import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.arguments.StringArgumentType;
+import com.mojang.brigadier.context.CommandContext;
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.Util;
+import net.minecraft.commands.CommandSourceStack;
+import net.minecraft.commands.Commands;
+import net.minecraft.network.chat.Component;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+import org.teacon.mua2fa.MUA2FA;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.concurrent.CompletableFuture;
+
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public final class MUACommands {
+    private static final Marker MARKER = MarkerManager.getMarker("Commands");
+
+    private MUACommands() {
+        throw new UnsupportedOperationException();
+    }
+
+    public static void register(CommandDispatcher<CommandSourceStack> dispatcher,
+                                ConfigSpec config, PresignedTable presigned) {
+        var file = Commands.argument("file", StringArgumentType.greedyString());
+        dispatcher.register(Commands.literal(MUA2FA.ID).requires(s -> s.hasPermission(Commands.LEVEL_OWNERS))
+                .then(Commands.literal("presign").then(file.executes(ctx -> presign(ctx, config, presigned)))));
+    }
+
+    private static int presign(CommandContext<CommandSourceStack> ctx, ConfigSpec config, PresignedTable presigned) {
+        var source = ctx.getSource();
+        var input = source.getServer().getServerDirectory().resolve(StringArgumentType.getString(ctx, "file"));
+        var derived = config.getDerived();
+        var key = derived.signKey().getSecond();
+        var now = OffsetDateTime.now(ZoneOffset.UTC);
+        var expire = now.plus(config.getTokenValidityPeriod()).toInstant();
+        source.sendSuccess(() -> Component.literal("Pre-signing records from " + input + " ..."), true);
+        // signing thousands of records takes a while, so it must not block the server thread
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                return presigned.presign(input, now.toInstant(), expire, derived.keyRing(), key);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, Util.ioPool()).whenCompleteAsync((count, e) -> {
+            if (e != null) {
+                MUA2FA.LOGGER.warn(MARKER, "Failed to pre-sign records from {}", input, e);
+                source.sendFailure(Component.literal("Failed to pre-sign records: " + e.getMessage()));
+                return;
+            }
+            var message = "Pre-signed " + count + " records valid until " + expire;
+            source.sendSuccess(() -> Component.literal(message), true);
+        }, source.getServer());
+        return Command.SINGLE_SUCCESS;
+    }
+}
@@ -0,0 +1,26 @@
+package org.teacon.mua2fa.server;
+
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.util.StringRepresentable;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.Locale;
+
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public enum OAuthHandlerMode implements StringRepresentable {
+    REACTIVE, VIRTUAL_THREAD;
+
+    public static final StringRepresentable.EnumCodec<OAuthHandlerMode> CODEC;
+
+    static {
+        CODEC = StringRepresentable.fromEnum(OAuthHandlerMode::values);
+    }
+
+    @Override
+    public String getSerializedName() {
+        return this.name().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,26 @@
+package org.teacon.mua2fa.server;
+
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.util.StringRepresentable;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.util.Locale;
+
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public enum OAuthProtocol implements StringRepresentable {
+    HTTP1, H2C, H2;
+
+    public static final StringRepresentable.EnumCodec<OAuthProtocol> CODEC;
+
+    static {
+        CODEC = StringRepresentable.fromEnum(OAuthProtocol::values);
+    }
+
+    @Override
+    public String getSerializedName() {
+        return this.name().toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,230 @@
+package org.teacon.mua2fa.server;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.mojang.authlib.GameProfile;
+import com.mojang.serialization.Codec;
+import com.mojang.serialization.JsonOps;
+import com.mojang.util.UndashedUuid;
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import net.minecraft.util.StringUtil;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+import org.teacon.mua2fa.MUA2FA;
+import org.teacon.mua2fa.data.Ed25519;
+import org.teacon.mua2fa.data.KeyRing;
+import org.teacon.mua2fa.data.MUARecord;
+
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.interfaces.EdECPrivateKey;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public final class PresignedTable {
+    public static final PresignedTable EMPTY = new PresignedTable(null, true, Map.of());
+
+    private static final Marker MARKER = MarkerManager.getMarker("Presign");
+    private static final Codec<MUARecord> CODEC = MUARecord.MAP_CODEC.codec();
+    private static final int BATCH_SIZE = 1024;
+
+    private final @Nullable Path file;
+    private final boolean clean;
+    private volatile Map<UUID, MUARecord> records;
+
+    private PresignedTable(@Nullable Path file, boolean clean, Map<UUID, MUARecord> records) {
+        this.file = file;
+        this.clean = clean;
+        this.records = records;
+    }
+
+    public static PresignedTable open(Path file) {
+        var clean = true;
+        var records = new HashMap<UUID, MUARecord>();
+        if (Files.exists(file)) {
+            try (var lines = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                var lineNumber = 0;
+                for (var line = lines.readLine(); line != null; line = lines.readLine()) {
+                    lineNumber += 1;
+                    if (!line.isBlank()) {
+                        try {
+                            var record = CODEC.parse(JsonOps.INSTANCE, JsonParser.parseString(line)).getOrThrow();
+                            records.put(record.getProfile().getId(), record);
+                        } catch (IllegalStateException | JsonParseException e) {
+                            MUA2FA.LOGGER.warn(MARKER, "Skipped invalid line {} of {}: {}", lineNumber, file,
+                                    e.getMessage());
+                            clean = false;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                MUA2FA.LOGGER.warn(MARKER, "Failed to load pre-signed records from {}", file, e);
+                clean = false;
+            }
+        }
+        MUA2FA.LOGGER.info(MARKER, "Loaded {} pre-signed records from {}", records.size(), file);
+        return new PresignedTable(file, clean, ImmutableMap.copyOf(records));
+    }
+
+    public Optional<MUARecord> get(GameProfile profile) {
+        var record = this.records.get(profile.getId());
+        return record != null && record.getProfile().equals(profile) ? Optional.of(record) : Optional.empty();
+    }
+
+    public synchronized int presign(Path input, Instant now,
+                                    Instant expire, KeyRing keys, EdECPrivateKey key) throws IOException {
+        var file = this.file;
+        if (file == null) {
+            throw new IOException("pre-signed records are not available");
+        }
+        if (!this.clean) {
+            // rewriting the file would silently drop every row which could not be loaded
+            throw new IOException("pre-signed records in " + file + " were not loaded cleanly, fix it and restart");
+        }
+        // rows no longer signed by any key of the ring, or already expired, are dropped instead of copied forever
+        var records = new HashMap<UUID, MUARecord>(this.records.size());
+        for (var entry : this.records.entrySet()) {
+            var signatures = entry.getValue().getSignatures().stream().filter(s -> s.getExpireAt().isAfter(now));
+            if (signatures.anyMatch(s -> keys.get(s.getKeyId(), s.getKeyBytes()) != null)) {
+                records.put(entry.getKey(), entry.getValue());
+            }
+        }
+        var tmpFile = Files.createTempFile(file.toAbsolutePath().getParent(), "mua2fa", ".jsonl");
+        var count = 0;
+        // a private pool so that pre-signing never fills the crypto queue shared by joining players
+        var threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+        var factory = new ThreadFactoryBuilder().setNameFormat("MUA2FA-Presign-%d").setDaemon(true).build();
+        var executor = Executors.newFixedThreadPool(threads, factory);
+        try (var lines = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+             var output = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+            // later lines of the same player win, so existing records go first and new ones are appended
+            for (var record : records.values()) {
+                write(output, record);
+            }
+            // the input is streamed and signed in batches so that large registration lists are never fully loaded
+            var batch = new ArrayList<CompletableFuture<MUARecord>>(BATCH_SIZE);
+            var lineNumber = 0;
+            for (var line = lines.readLine(); line != null; line = lines.readLine()) {
+                var entry = parse(line.strip(), ++lineNumber);
+                if (entry != null) {
+                    var user = entry.user();
+                    batch.add(Ed25519.supplyAsync(() -> user.sign(entry.profile(), expire, keys, key), executor));
+                }
+                if (batch.size() >= BATCH_SIZE) {
+                    count += flush(batch, records, output);
+                }
+            }
+            count += flush(batch, records, output);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmpFile);
+            throw e;
+        } finally {
+            executor.shutdownNow();
+        }
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.records = ImmutableMap.copyOf(records);
+        MUA2FA.LOGGER.info(MARKER, "Pre-signed {} records from {} until {}", count, input, expire);
+        return count;
+    }
+
+    private static int flush(List<CompletableFuture<MUARecord>> batch,
+                             Map<UUID, MUARecord> records, BufferedWriter output) throws IOException {
+        var count = batch.size();
+        for (var future : batch) {
+            var record = future.join();
+            records.put(record.getProfile().getId(), record);
+            write(output, record);
+        }
+        batch.clear();
+        return count;
+    }
+
+    private static void write(BufferedWriter output, MUARecord record) throws IOException {
+        output.write(CODEC.encodeStart(JsonOps.INSTANCE, record).getOrThrow().toString());
+        output.newLine();
+    }
+
+    private static @Nullable Entry parse(String line, int lineNumber) {
+        if (line.isEmpty() || line.startsWith("#")) {
+            return null;
+        }
+        try {
+            if (line.startsWith("{")) {
+                var json = JsonParser.parseString(line).getAsJsonObject();
+                var id = json.has("uuid") ? json.get("uuid") : json.get("id");
+                return Entry.of(id.getAsString(), json.get("name").getAsString(), json.get("sub").getAsString(),
+                        json.get("nickname").getAsString(), json.get("email").getAsString());
+            }
+            var columns = csv(line);
+            if (columns.size() != 5) {
+                throw new IllegalArgumentException("expected 5 columns but got " + columns.size());
+            }
+            if (lineNumber == 1 && "uuid".equalsIgnoreCase(columns.getFirst())) {
+                return null;
+            }
+            return Entry.of(columns.get(0), columns.get(1), columns.get(2), columns.get(3), columns.get(4));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("invalid line " + lineNumber + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static List<String> csv(String line) {
+        var columns = new ArrayList<String>();
+        var current = new StringBuilder();
+        var quoted = false;
+        for (var i = 0; i < line.length(); ++i) {
+            var c = line.charAt(i);
+            if (quoted) {
+                if (c != '"') {
+                    current.append(c);
+                } else if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    current.append(c);
+                    i += 1;
+                } else {
+                    quoted = false;
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                columns.add(current.toString().strip());
+                current.setLength(0);
+            } else {
+                current.append(c);
+            }
+        }
+        columns.add(current.toString().strip());
+        return columns;
+    }
+
+    @FieldsAreNonnullByDefault
+    @MethodsReturnNonnullByDefault
+    @ParametersAreNonnullByDefault
+    private record Entry(GameProfile profile, MUARecord.User user) {
+        private static Entry of(String id, String name, String sub, String nickname, String email) {
+            if (!StringUtil.isValidPlayerName(name)) {
+                throw new IllegalArgumentException("invalid player name: " + name);
+            }
+            var profile = new GameProfile(UndashedUuid.fromStringLenient(id), name);
+            return new Entry(profile, new MUARecord.User(sub, nickname, email));
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package org.teacon.mua2fa.server;
+
+import com.google.common.hash.HashCode;
+import net.minecraft.FieldsAreNonnullByDefault;
+import net.minecraft.MethodsReturnNonnullByDefault;
+import org.teacon.mua2fa.data.MUAIdentity;
+
+import javax.annotation.ParametersAreNonnullByDefault;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Instant;
+
+@FieldsAreNonnullByDefault
+@MethodsReturnNonnullByDefault
+@ParametersAreNonnullByDefault
+public record TrustedSession(HashCode token, MUAIdentity identity, Instant expire) {
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    public static HashCode newToken() {
+        // only the client the token was sent to can echo it, whichever address or proxy it connects from
+        var bytes = new byte[32];
+        RANDOM.nextBytes(bytes);
+        return HashCode.fromBytes(bytes);
+    }
+
+    public boolean matches(HashCode token, Instant now, boolean requireIdentifier) {
+        var identified = this.identity.isPresent() || !requireIdentifier;
+        // compared in constant time so that the token cannot be guessed byte by byte
+        var echoed = MessageDigest.isEqual(this.token.asBytes(), token.asBytes());
+        return identified && echoed && this.expire.isAfter(now);
+    }
+}